@@ -0,0 +1,220 @@
+/*
+ * This class limits how fast received geo SMS are saved, so a flood from
+ * one sender, or from everyone at once, can't grow the database without
+ * bound.
+ *
+ * Each sender has a token bucket, and there is one more shared by all
+ * senders. A message is saved as a new record if both buckets have a
+ * token. Otherwise it is coalesced: it replaces the sender's coalesced
+ * record, which only ever holds their latest message, or starts one if
+ * the shared bucket has a token, and is dropped if not. So the shared
+ * bucket limits how fast records are added, whoever the messages are
+ * from. A sender's bucket starts empty, so changing numbers doesn't get
+ * around the limit. The limits can be relaxed, tightened or turned off.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+public class AdmissionControl {
+	private Context							_context;
+	private LinkedHashMap<String, Bucket>	_senders;
+	private Bucket							_global = new Bucket ();
+
+	private static AdmissionControl		_instance = null;
+
+	public static final int		LEVEL_OFF = 0;
+	public static final int		LEVEL_RELAXED = 1;
+	public static final int		LEVEL_NORMAL = 2;
+	public static final int		LEVEL_STRICT = 3;
+
+		// What to do with a message.
+	public static final int		ADMIT = 0;
+	public static final int		COALESCE = 1;
+
+		// Messages per hour, and the burst size, for each level.
+	private static final double	SENDER_RATE[] = {0.0, 120.0, 30.0, 10.0};
+	private static final double	SENDER_BURST[] = {0.0, 20.0, 10.0, 5.0};
+	private static final double	GLOBAL_RATE[] = {0.0, 600.0, 150.0, 50.0};
+	private static final double	GLOBAL_BURST[] = {0.0, 60.0, 30.0, 15.0};
+
+	private static final int	MAX_SENDERS = 64;
+	private static final double	MILLISECONDS_PER_HOUR = 60.0 * 60.0 * 1000.0;
+
+	/*
+	 * A token bucket.
+	 */
+	private static class Bucket {
+		public double		tokens = -1.0;		// Full when first used.
+		public long			time = 0;
+
+		/*
+		 * Add the tokens earned since the last call, up to the burst size.
+		 */
+		public void
+		refill (
+			double		rate,
+			double		burst,
+			long		now
+		) {
+			if (tokens < 0.0)
+				tokens = burst;
+			else if (now > time)
+				tokens = Math.min (burst, tokens
+								+ (now - time) * rate / MILLISECONDS_PER_HOUR);
+
+			time = now;
+		}
+	}
+
+	/*
+	 * Return the admission control, creating it if necessary.
+	 */
+	public static synchronized AdmissionControl
+	getInstance (
+		Context		context
+	) {
+		if (_instance == null)
+			_instance = new AdmissionControl (context.getApplicationContext ());
+
+		return _instance;
+	}
+
+	/*
+	 * Constructor.
+	 */
+	private AdmissionControl (
+		Context		context
+	) {
+		_context = context;
+		_senders = new LinkedHashMap<String, Bucket> (MAX_SENDERS, 0.75f, true) {
+			protected boolean
+			removeEldestEntry (
+				Map.Entry<String, Bucket>	eldest
+			) {
+				return (size () > MAX_SENDERS);
+			}
+		};
+	}
+
+	/*
+	 * Decide what to do with a new message from the sender, returning
+	 * ADMIT to save it as a new record, taking a token from both buckets,
+	 * or COALESCE to save it in the sender's coalesced record.
+	 */
+	public synchronized int
+	admit (
+		String		senderKey,
+		long		now
+	) {
+		int			level = getLevel (_context);
+
+		if (level == LEVEL_OFF)
+			return ADMIT;
+
+		Bucket		sender = _senders.get (senderKey);
+
+			// New senders, and those forgotten to make room for others,
+			// start with nothing, and earn tokens from now.
+		if (sender == null) {
+			sender = new Bucket ();
+			sender.tokens = 0.0;
+			sender.time = now;
+			_senders.put (senderKey, sender);
+		}
+
+		sender.refill (SENDER_RATE[level], SENDER_BURST[level], now);
+		_global.refill (GLOBAL_RATE[level], GLOBAL_BURST[level], now);
+
+		if (sender.tokens < 1.0 || _global.tokens < 1.0)
+			return COALESCE;
+
+		sender.tokens -= 1.0;
+		_global.tokens -= 1.0;
+
+		return ADMIT;
+	}
+
+	/*
+	 * Can a coalesced message start a new coalesced record? If so, a
+	 * token is taken from the shared bucket.
+	 */
+	public synchronized boolean
+	admitCoalesced (
+		long		now
+	) {
+		int			level = getLevel (_context);
+
+		if (level == LEVEL_OFF)
+			return true;
+
+		_global.refill (GLOBAL_RATE[level], GLOBAL_BURST[level], now);
+		if (_global.tokens < 1.0)
+			return false;
+
+		_global.tokens -= 1.0;
+
+		return true;
+	}
+
+	/*
+	 * Give back the tokens taken for a message that wasn't saved after
+	 * all, such as a duplicate: those taken by admit () for ADMIT, or by
+	 * admitCoalesced () for COALESCE.
+	 */
+	public synchronized void
+	refund (
+		String		senderKey,
+		int			admission
+	) {
+		Bucket		sender = _senders.get (senderKey);
+
+			// Buckets that haven't been used yet had nothing taken.
+		if (admission == ADMIT && sender != null && sender.tokens >= 0.0)
+			sender.tokens += 1.0;
+
+		if (_global.tokens >= 0.0)
+			_global.tokens += 1.0;
+	}
+
+	/*
+	 * Return the current level, one of the LEVEL_ constants.
+	 */
+	public static int
+	getLevel (
+		Context		context
+	) {
+		SharedPreferences	prefs = context.getSharedPreferences (
+										"IAmHerePrefs", Context.MODE_PRIVATE);
+		int					level = prefs.getInt ("admission_level",
+																LEVEL_NORMAL);
+
+		return (level < LEVEL_OFF || level > LEVEL_STRICT) ? LEVEL_NORMAL
+																	: level;
+	}
+
+	/*
+	 * Change the level.
+	 */
+	public static void
+	setLevel (
+		Context		context,
+		int			level
+	) {
+		SharedPreferences.Editor	editor = context.getSharedPreferences (
+								"IAmHerePrefs", Context.MODE_PRIVATE).edit ();
+
+		editor.putInt ("admission_level", level);
+		editor.commit ();
+	}
+}
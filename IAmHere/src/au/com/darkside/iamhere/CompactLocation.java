@@ -0,0 +1,319 @@
+/*
+ * This class encodes/decodes locations as compact geohash codes, so more
+ * of them fit in a single SMS.
+ *
+ * The format is gh:HASH[*A][+ALT|-ALT], where HASH is a base-32 geohash of
+ * up to 12 characters, A is a single base-32 character holding the accuracy
+ * on a logarithmic scale, and ALT is the altitude in whole metres.
+ * An accuracy too coarse for the scale is left out.
+ * Eleven characters of geohash give the same precision as the six decimal
+ * places written by GeoUri.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import android.location.Location;
+
+public class CompactLocation {
+	public static final String	PREFIX = "gh:";
+
+	private static final String	ALPHABET = "0123456789bcdefghjkmnpqrstuvwxyz";
+	private static final int	DEFAULT_HASH_LENGTH = 11;
+	private static final int	MAX_HASH_LENGTH = 12;
+	private static final double	MIN_ACCURACY = 0.1;
+	private static final double	METRES_PER_DEGREE = 40075017.0 / 360.0;
+	private static final int	MAX_ALTITUDE_DIGITS = 6;
+
+		// Maps a lower-case ASCII character to its base-32 value, or -1.
+	private static final byte	DECODE[] = new byte[128];
+
+	static {
+		int			i;
+
+		for (i = 0; i < DECODE.length; i++)
+			DECODE[i] = -1;
+
+		for (i = 0; i < ALPHABET.length (); i++)
+			DECODE[ALPHABET.charAt (i)] = (byte) i;
+	}
+
+	/*
+	 * Return the location encoded as a compact code.
+	 */
+	public static String
+	locationToString (
+		final Location	loc
+	) {
+		return locationToString (loc, false);
+	}
+
+	/*
+	 * Return the location encoded as a compact code.
+	 * If limitPrecision is set, the geohash length is derived from the
+	 * location's accuracy.
+	 */
+	public static String
+	locationToString (
+		final Location	loc,
+		boolean			limitPrecision
+	) {
+		return append (new StringBuilder (24), loc, limitPrecision).toString ();
+	}
+
+	/*
+	 * Append the location, encoded as a compact code, to a string builder,
+	 * optionally limiting the precision to the location's accuracy.
+	 * Returns the string builder.
+	 */
+	public static StringBuilder
+	append (
+		final StringBuilder	sb,
+		final Location		loc,
+		boolean				limitPrecision
+	) {
+		int			length = DEFAULT_HASH_LENGTH;
+		int			accuracy = -1;
+
+		if (limitPrecision && loc.hasAccuracy ())
+			length = hashLengthForAccuracy (loc.getAccuracy ());
+
+		sb.append (PREFIX);
+		appendHash (sb, loc.getLatitude (), loc.getLongitude (), length);
+
+		if (loc.hasAccuracy ())
+			accuracy = accuracyToIndex (loc.getAccuracy ());
+
+		if (accuracy >= 0) {
+			sb.append ('*');
+			sb.append (ALPHABET.charAt (accuracy));
+		}
+
+		if (loc.hasAltitude ()) {
+			long		alt = Math.round (loc.getAltitude ());
+
+			if (alt >= 0)
+				sb.append ('+');
+			sb.append (alt);
+		}
+
+		return sb;
+	}
+
+	/*
+	 * Scan a compact code that begins at the start position, without going
+	 * past the end position, and store the location in the result.
+	 * Returns the position just past the code, or -1 if there isn't a valid
+	 * code at the start position.
+	 */
+	public static int
+	scan (
+		final CharSequence		s,
+		final int				start,
+		final int				end,
+		final ParsedLocation	result
+	) {
+		result.clear (s);
+
+		if (end - start <= PREFIX.length () || !prefixMatches (s, start))
+			return -1;
+
+		double		latMin = -90.0, latMax = 90.0;
+		double		lonMin = -180.0, lonMax = 180.0;
+		boolean		evenBit = true;
+		int			pos = start + PREFIX.length ();
+		int			hashStart = pos;
+		int			bit, v;
+
+		while (pos < end && pos - hashStart < MAX_HASH_LENGTH
+								&& (v = decodeChar (s.charAt (pos))) >= 0) {
+			for (bit = 4; bit >= 0; bit--) {
+				boolean		set = ((v >> bit) & 1) != 0;
+
+				if (evenBit) {
+					double		mid = (lonMin + lonMax) * 0.5;
+
+					if (set)
+						lonMin = mid;
+					else
+						lonMax = mid;
+				} else {
+					double		mid = (latMin + latMax) * 0.5;
+
+					if (set)
+						latMin = mid;
+					else
+						latMax = mid;
+				}
+				evenBit = !evenBit;
+			}
+			pos++;
+		}
+
+		if (pos == hashStart)
+			return -1;
+
+		result.setLatitude ((latMin + latMax) * 0.5);
+		result.setLongitude ((lonMin + lonMax) * 0.5);
+
+		if (pos + 1 < end && s.charAt (pos) == '*'
+							&& (v = decodeChar (s.charAt (pos + 1))) >= 0) {
+			result.setAccuracy (indexToAccuracy (v));
+			pos += 2;
+		}
+
+		if (pos + 1 < end && (s.charAt (pos) == '+' || s.charAt (pos) == '-')) {
+			boolean		negative = (s.charAt (pos) == '-');
+			long		alt = 0;
+			int			i;
+
+			for (i = pos + 1; i < end && i - pos <= MAX_ALTITUDE_DIGITS; i++) {
+				char		c = s.charAt (i);
+
+				if (c < '0' || c > '9')
+					break;
+				alt = alt * 10 + (c - '0');
+			}
+
+			if (i > pos + 1) {
+				result.setAltitude (negative ? -alt : alt);
+				pos = i;
+			}
+		}
+
+			// The code must end at a word boundary, so that ordinary words
+			// following the prefix aren't taken as codes.
+		if (pos < end && Character.isLetterOrDigit (s.charAt (pos))) {
+			result.clear ();
+			return -1;
+		}
+
+		return pos;
+	}
+
+	/*
+	 * Append the geohash of a latitude and longitude to a string builder.
+	 */
+	private static void
+	appendHash (
+		final StringBuilder	sb,
+		double				lat,
+		double				lon,
+		int					length
+	) {
+		double		latMin = -90.0, latMax = 90.0;
+		double		lonMin = -180.0, lonMax = 180.0;
+		boolean		evenBit = true;
+		int			i, bit;
+
+		for (i = 0; i < length; i++) {
+			int			v = 0;
+
+			for (bit = 0; bit < 5; bit++) {
+				v <<= 1;
+				if (evenBit) {
+					double		mid = (lonMin + lonMax) * 0.5;
+
+					if (lon >= mid) {
+						v |= 1;
+						lonMin = mid;
+					} else
+						lonMax = mid;
+				} else {
+					double		mid = (latMin + latMax) * 0.5;
+
+					if (lat >= mid) {
+						v |= 1;
+						latMin = mid;
+					} else
+						latMax = mid;
+				}
+				evenBit = !evenBit;
+			}
+
+			sb.append (ALPHABET.charAt (v));
+		}
+	}
+
+	/*
+	 * Return the shortest geohash length whose cells are no larger than
+	 * the accuracy, up to the default length.
+	 */
+	private static int
+	hashLengthForAccuracy (
+		double		accuracy
+	) {
+		int			length;
+
+		for (length = 1; length < DEFAULT_HASH_LENGTH; length++) {
+			int			lonBits = (5 * length + 1) / 2;
+			double		width = METRES_PER_DEGREE * 360.0 / (1L << lonBits);
+
+			if (width <= accuracy)
+				break;
+		}
+
+		return length;
+	}
+
+	/*
+	 * Convert an accuracy in metres to a base-32 index.
+	 * Each step is a factor of the square root of two, from 10cm to 4.6km.
+	 * Returns -1 if the accuracy is coarser than that, rather than
+	 * claiming more precision than the location has.
+	 */
+	private static int
+	accuracyToIndex (
+		double		accuracy
+	) {
+		if (accuracy <= MIN_ACCURACY)
+			return 0;
+
+		int			i = (int) Math.ceil (2.0 * Math.log (accuracy / MIN_ACCURACY)
+															/ Math.log (2.0));
+
+		return (i < ALPHABET.length ()) ? i : -1;
+	}
+
+	/*
+	 * Convert a base-32 index to an accuracy in metres.
+	 */
+	private static float
+	indexToAccuracy (
+		int			i
+	) {
+		return (float) (MIN_ACCURACY * Math.pow (2.0, i * 0.5));
+	}
+
+	/*
+	 * Return the base-32 value of a character, or -1 if it isn't valid.
+	 * Upper case is accepted, since some phones capitalize words.
+	 */
+	private static int
+	decodeChar (
+		char		c
+	) {
+		if (c >= 'A' && c <= 'Z')
+			c = (char) (c - 'A' + 'a');
+
+		return (c < DECODE.length) ? DECODE[c] : -1;
+	}
+
+	/*
+	 * Does the text at the specified position start with the prefix,
+	 * ignoring case?
+	 */
+	private static boolean
+	prefixMatches (
+		final CharSequence	s,
+		final int			pos
+	) {
+		return (Character.toLowerCase (s.charAt (pos)) == 'g'
+					&& Character.toLowerCase (s.charAt (pos + 1)) == 'h'
+					&& s.charAt (pos + 2) == ':');
+	}
+}
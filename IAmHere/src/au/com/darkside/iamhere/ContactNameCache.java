@@ -0,0 +1,202 @@
+/*
+ * A process-wide cache of phone number to contact lookups.
+ *
+ * Messages tend to come from the same few people, so the contact name
+ * and id of each sender key are kept in a small LRU map, along with the
+ * keys that have no contact. Keying by sender key means the different
+ * ways of writing one number share an entry. The whole cache is dropped
+ * whenever the contacts change.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Contacts;
+
+public class ContactNameCache {
+	private Context							_context;
+	private ContentResolver					_resolver;
+	private LinkedHashMap<String, Contact>	_contacts;
+	private int								_generation = 0;
+
+	private static ContactNameCache		_instance = null;
+
+	private static final int	MAX_ENTRIES = 64;
+
+		// The contacts provider from Android 2.0, which isn't in this SDK.
+	private static final Uri	CONTACTS_URI = Uri.parse (
+											"content://com.android.contacts");
+
+		// Stored for numbers that have no contact.
+	private static final Contact	NO_CONTACT = new Contact (null, -1);
+
+	/*
+	 * The name and id of a contact.
+	 */
+	private static class Contact {
+		public final String		name;
+		public final long		id;
+
+		public Contact (
+			String		n,
+			long		i
+		) {
+			name = n;
+			id = i;
+		}
+	}
+
+	/*
+	 * Return the cache, creating it if necessary.
+	 */
+	public static synchronized ContactNameCache
+	getInstance (
+		Context		context
+	) {
+		if (_instance == null)
+			_instance = new ContactNameCache (context.getApplicationContext ());
+
+		return _instance;
+	}
+
+	/*
+	 * Constructor. Watches the contacts for changes.
+	 */
+	private ContactNameCache (
+		Context		context
+	) {
+		_context = context;
+		_resolver = context.getContentResolver ();
+		_contacts = new LinkedHashMap<String, Contact> (MAX_ENTRIES, 0.75f,
+																	true) {
+			protected boolean
+			removeEldestEntry (
+				Map.Entry<String, Contact>	eldest
+			) {
+				return (size () > MAX_ENTRIES);
+			}
+		};
+
+		ContentObserver		observer = new ContentObserver (null) {
+			public void onChange (boolean selfChange) {
+				clear ();
+			}
+		};
+
+			// From Android 2.0, changes made in the Contacts app are only
+			// notified on the newer provider's URI.
+		_resolver.registerContentObserver (Contacts.People.CONTENT_URI, true,
+																	observer);
+		_resolver.registerContentObserver (CONTACTS_URI, true, observer);
+	}
+
+	/*
+	 * Return the contact name for a phone number, or the number itself
+	 * if there is no matching contact.
+	 */
+	public String
+	getName (
+		String		number
+	) {
+		if (number == null || number.length () == 0)
+			return number;
+
+		String		name = lookup (number).name;
+
+		return (name == null || name.length () == 0) ? number : name;
+	}
+
+	/*
+	 * Return the id of the contact with a phone number, or -1 if there
+	 * is no matching contact.
+	 */
+	public long
+	getContactId (
+		String		number
+	) {
+		if (number == null || number.length () == 0)
+			return -1;
+
+		return lookup (number).id;
+	}
+
+	/*
+	 * Return the cached contact for a number, querying the contacts
+	 * provider if necessary.
+	 */
+	private Contact
+	lookup (
+		String		number
+	) {
+		String		key = PhoneNumbers.senderKey (_context, number);
+		Contact		contact;
+		int			generation;
+
+		synchronized (this) {
+			contact = _contacts.get (key);
+			generation = _generation;
+		}
+
+		if (contact == null) {
+			contact = queryContact (number);
+
+				// Don't store the result if the contacts changed meanwhile.
+			synchronized (this) {
+				if (generation == _generation)
+					_contacts.put (key, contact);
+			}
+		}
+
+		return contact;
+	}
+
+	/*
+	 * Forget all the cached contacts.
+	 */
+	public synchronized void
+	clear () {
+		_contacts.clear ();
+		_generation++;
+	}
+
+	/*
+	 * Look up the contact for a number in the contacts provider.
+	 */
+	private Contact
+	queryContact (
+		String		number
+	) {
+		String		projection[] = new String[] {
+			Contacts.Phones.DISPLAY_NAME, Contacts.Phones.PERSON_ID
+		};
+		Uri			uri = Uri.withAppendedPath (
+										Contacts.Phones.CONTENT_FILTER_URL,
+														Uri.encode (number));
+		Cursor		c = _resolver.query (uri, projection, null, null, null);
+		Contact		contact = NO_CONTACT;
+
+		if (c == null)
+			return contact;
+
+		try {
+			if (c.moveToFirst ())
+				contact = new Contact (c.getString (0), c.getLong (1));
+		} finally {
+			c.close ();
+		}
+
+		return contact;
+	}
+}
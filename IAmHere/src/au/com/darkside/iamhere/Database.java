@@ -1,6 +1,15 @@
 /*
  * This class handles the storage and retrieval of records.
- * 
+ *
+ * There is one instance per process, shared by every thread, which keeps
+ * the database open. Writes go through one connection. When write-ahead
+ * logging is available, the list cursors read through a second,
+ * read-only connection, so they don't hold up the receiver's inserts.
+ * Changes are made on the DatabaseWriter's thread, which commits them
+ * in groups.
+ * Triggers keep the message counts, and a summary of each sender, up to
+ * date as messages change, so they can be read without counting.
+ *
  * Written by Matthew Kwan - August 2010
  *
  * Copyright (c) 2010 Matthew Kwan
@@ -12,209 +21,2110 @@
 
 package au.com.darkside.iamhere;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.location.Location;
 import android.telephony.SmsMessage;
-import android.widget.Toast;
+import android.util.Log;
 
 public class Database {
 	private Context				_context;
-	private SQLiteDatabase		_db;
-	
+	private OpenHelper			_helper;
+	private SQLiteDatabase		_reader = null;
+	private boolean				_readerChecked = false;
+	private boolean				_searchable = false;
+	private boolean				_spatial = false;
+	private HashMap<String, SQLiteStatement>	_statements =
+									new HashMap<String, SQLiteStatement> ();
+
+	private static Database		_instance = null;
+
+	private static ThreadLocal<Integer>	_errorCount = new ThreadLocal<Integer> ();
+
+	private static final String	DATABASE_NAME = "IAmHereDB";
+
+		// Stored in the database's user_version, and raised whenever the
+		// schema changes.
+	private static final int	SCHEMA_VERSION = 8;
+
+		// The most characters of a message shown in the list.
+	private static final int	PREVIEW_LENGTH = 200;
+
+		// Metres per degree of latitude, and the radii used when looking
+		// for the nearest messages.
+	private static final double	METRES_PER_DEGREE = 40075017.0 / 360.0;
+	private static final double	NEAREST_START_RADIUS = 1000.0;
+	private static final double	NEAREST_MAX_RADIUS = 20037508.0;
+
+		// Retention deletes this many messages per transaction, pausing
+		// between them so other writers get a turn.
+	private static final int	DELETE_BATCH = 100;
+	private static final long	DELETE_PAUSE = 100;			// Milliseconds.
+
+		// Messages with no text, only positions.
+	private static final String	POSITION_ONLY = "decoded=1 AND NOT EXISTS "
+						+ "(SELECT 1 FROM sms_target t WHERE "
+						+ "t.sms_id=received_sms._id AND t.text IS NOT NULL)";
+
+		// The statements used by the common operations. Arguments are
+		// always bound, so each is compiled once and reused.
+	private static final String	INSERT_SMS = "INSERT INTO received_sms "
+						+ "(timestamp, viewed, phone, sender_key, message, "
+						+ "body_hash, dedup_bucket) VALUES (?, ?, ?, ?, ?, ?, ?)";
+	private static final String	COALESCED_SMS = "SELECT _id FROM received_sms "
+						+ "WHERE coalesced=1 AND sender_key=?";
+	private static final String	MARK_COALESCED =
+						"UPDATE received_sms SET coalesced=1 WHERE _id=?";
+	private static final String	END_COALESCING = "UPDATE received_sms "
+						+ "SET coalesced=0 WHERE coalesced=1 AND sender_key=?";
+	private static final String	SAVED_SMS = "SELECT COUNT(*) FROM received_sms "
+						+ "WHERE sender_key=? AND timestamp>=? AND timestamp<? "
+						+ "AND message IS ?";
+	private static final String	REPLACE_SMS = "UPDATE received_sms "
+						+ "SET timestamp=?, viewed=0, message=?, body_hash=?, "
+						+ "dedup_bucket=? WHERE _id=?";
+	private static final String	MARK_READ =
+						"UPDATE received_sms SET viewed=1 WHERE _id=?";
+	private static final String	MARK_DECODED =
+						"UPDATE received_sms SET decoded=1 WHERE _id=?";
+	private static final String	DELETE_SMS =
+						"DELETE FROM received_sms WHERE _id=?";
+	private static final String	INSERT_TARGET = "INSERT INTO sms_target "
+						+ "(sms_id, ordinal, latitude, longitude, altitude, "
+						+ "accuracy, text) VALUES (?, ?, ?, ?, ?, ?, ?)";
+	private static final String	DELETE_TARGETS =
+						"DELETE FROM sms_target WHERE sms_id=?";
+	private static final String	SELECT_DETAILS =
+						"SELECT phone, message FROM received_sms WHERE _id=?";
+	private static final String	SELECT_DECODED =
+						"SELECT decoded, message FROM received_sms WHERE _id=?";
+	private static final String	PAGE_COLUMNS = "SELECT _id, phone, "
+						+ "sender_key, substr(message, 1, " + PREVIEW_LENGTH
+						+ ") FROM received_sms";
+	private static final String	INSERT_SEARCH = "INSERT INTO sms_search "
+						+ "(docid, message, sender) VALUES (?, ?, ?)";
+	private static final String	BOX_RTREE = "SELECT t.sms_id, t.latitude, "
+						+ "t.longitude FROM sms_target_rtree r, sms_target t "
+						+ "WHERE r.max_lat>=? AND r.min_lat<=? "
+						+ "AND r.max_lon>=? AND r.min_lon<=? AND t._id=r.id";
+	private static final String	BOX_INDEX = "SELECT sms_id, latitude, "
+						+ "longitude FROM sms_target "
+						+ "WHERE latitude BETWEEN ? AND ? "
+						+ "AND longitude BETWEEN ? AND ?";
+	private static final String	LATEST_POSITION = "(SELECT t._id "
+						+ "FROM received_sms r, sms_target t "
+						+ "WHERE r.sender_key=sender_summary.sender_key "
+						+ "AND t.sms_id=r._id AND t.latitude IS NOT NULL "
+						+ "ORDER BY r._id DESC, t.ordinal LIMIT 1)";
+	private static final String	SELECT_TARGETS = "SELECT text, latitude, "
+						+ "longitude, altitude, accuracy FROM sms_target "
+						+ "WHERE sms_id=? ORDER BY ordinal";
+
+	/*
+	 * Creates the database, and brings older ones up to date.
+	 */
+	private class OpenHelper extends SQLiteOpenHelper {
+		/*
+		 * Constructor.
+		 */
+		public OpenHelper () {
+			super (_context, DATABASE_NAME, null, SCHEMA_VERSION);
+		}
+
+		/*
+		 * Called when the database has no version. It may still hold the
+		 * table from before versions were recorded.
+		 */
+		@Override
+		public void
+		onCreate (
+			SQLiteDatabase	db
+		) {
+			db.execSQL ("CREATE TABLE IF NOT EXISTS received_sms ("
+						+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+						+ "timestamp INTEGER NOT NULL, "
+						+ "viewed INTEGER NOT NULL, "
+						+ "phone VARCHAR NOT NULL, "
+						+ "message VARCHAR NULL)");
+
+			upgrade (db, 0);
+		}
+
+		/*
+		 * Called when the database has an older version.
+		 */
+		@Override
+		public void
+		onUpgrade (
+			SQLiteDatabase	db,
+			int				oldVersion,
+			int				newVersion
+		) {
+			upgrade (db, oldVersion);
+		}
+
+		/*
+		 * Called whenever the database is opened.
+		 * Write-ahead logging lets readers and the writer work at the
+		 * same time. SQLite versions without it just ignore the pragma.
+		 */
+		@Override
+		public void
+		onOpen (
+			SQLiteDatabase	db
+		) {
+			if (!db.isReadOnly ())
+				pragma (db, "PRAGMA journal_mode=WAL");
+
+			_searchable = hasTable (db, "sms_search");
+			_spatial = hasTable (db, "sms_target_rtree");
+		}
+	}
+
+	/*
+	 * Return the database, creating it if necessary.
+	 */
+	public static synchronized Database
+	getInstance (
+		Context		c
+	) {
+		if (_instance == null)
+			_instance = new Database (c.getApplicationContext ());
+
+		return _instance;
+	}
+
 	/*
 	 * Constructor.
 	 */
-	public Database (
+	private Database (
 		Context		c
 	) {
 		_context = c;
-		_db = null;
+		_helper = new OpenHelper ();
 	}
-	
+
 	/*
-	 * Open the database.
+	 * Return the connection used for writing, opening it if necessary,
+	 * or null if it can't be opened.
 	 */
-	public boolean
-	open () {
+	private SQLiteDatabase
+	writer () {
 		try {
-			_db = _context.openOrCreateDatabase ("IAmHereDB",
-												Context.MODE_PRIVATE, null);
+			return _helper.getWritableDatabase ();
+		} catch (SQLiteException e) {
+			reportError (e);
+			return null;
+		}
+	}
 
-			_db.execSQL ("CREATE TABLE IF NOT EXISTS received_sms ("
-						+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
-						+ "timestamp INTEGER NOT NULL, "
-						+ "viewed INTEGER NOT NULL, "
-						+ "phone VARCHAR NOT NULL, "
-						+ "message VARCHAR NULL)");
-		} catch (Exception e) {
-			Toast.makeText (_context, e.getMessage (), Toast.LENGTH_LONG).show ();
-			_db = null;
+	/*
+	 * Return the connection used by the list cursors. This is a separate
+	 * read-only connection if write-ahead logging is on, otherwise the
+	 * writer's connection.
+	 */
+	private synchronized SQLiteDatabase
+	reader () {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return null;
+
+		if (!_readerChecked) {
+			_readerChecked = true;
+
+			if ("wal".equalsIgnoreCase (pragma (db, "PRAGMA journal_mode"))) {
+				try {
+					_reader = SQLiteDatabase.openDatabase (db.getPath (), null,
+												SQLiteDatabase.OPEN_READONLY);
+				} catch (SQLiteException e) {
+					reportError (e);
+				}
+			}
 		}
-		
-		return (_db != null);
+
+		return (_reader != null) ? _reader : db;
 	}
-	
+
 	/*
-	 * Close the database.
+	 * Run a pragma, returning the first column of its result, or null.
 	 */
-	public void
-	close () {
-		if (_db != null) {
-			_db.close ();
-			_db = null;
+	private static String
+	pragma (
+		SQLiteDatabase	db,
+		String			sql
+	) {
+		Cursor		c = null;
+
+		try {
+			c = db.rawQuery (sql, null);
+			return c.moveToFirst () ? c.getString (0) : null;
+		} catch (SQLiteException e) {
+			return null;
+		} finally {
+			if (c != null)
+				c.close ();
 		}
 	}
 
 	/*
-	 * Save the details of a received geo-tagged SMS, along with a time stamp.
+	 * Bring the schema up to date from an older version. Called inside
+	 * the open helper's transaction.
 	 */
-	public long
-	addRecord (
-		SmsMessage		msg
+	private void
+	upgrade (
+		SQLiteDatabase	db,
+		int				version
 	) {
-		if (_db == null)
-			return -1;
+		if (version < 1) {
+			db.execSQL ("ALTER TABLE received_sms "
+										+ "ADD COLUMN sender_key VARCHAR NULL");
+			db.execSQL ("CREATE INDEX IF NOT EXISTS received_sms_sender "
+										+ "ON received_sms (sender_key, _id)");
+			fillSenderKeys (db);
+		}
+
+		if (version < 2) {
+				// Older rows are left without a hash, so existing
+				// duplicates don't stop the index being built.
+			db.execSQL ("ALTER TABLE received_sms "
+										+ "ADD COLUMN body_hash INTEGER NULL");
+			db.execSQL ("ALTER TABLE received_sms "
+										+ "ADD COLUMN dedup_bucket INTEGER NULL");
+			db.execSQL ("CREATE UNIQUE INDEX IF NOT EXISTS received_sms_dedup "
+								+ "ON received_sms (sender_key, body_hash, "
+								+ "dedup_bucket)");
+		}
 
-		ContentValues	cv = new ContentValues (4);
-		Date			d = new Date ();
-		long			ret = -1;
+		if (version < 3) {
+				// The locations and text of each message, decoded once.
+				// Older messages are decoded when they are first read.
+			db.execSQL ("ALTER TABLE received_sms "
+							+ "ADD COLUMN decoded INTEGER NOT NULL DEFAULT 0");
+			db.execSQL ("CREATE TABLE IF NOT EXISTS sms_target ("
+						+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+						+ "sms_id INTEGER NOT NULL, "
+						+ "ordinal INTEGER NOT NULL, "
+						+ "latitude REAL NULL, "
+						+ "longitude REAL NULL, "
+						+ "altitude REAL NULL, "
+						+ "accuracy REAL NULL, "
+						+ "text VARCHAR NULL)");
+			db.execSQL ("CREATE UNIQUE INDEX IF NOT EXISTS sms_target_message "
+										+ "ON sms_target (sms_id, ordinal)");
+		}
 
-		cv.put ("timestamp", d.getTime ());
-		cv.put ("viewed", 0);
-		cv.put ("phone", msg.getOriginatingAddress ());
-		cv.put ("message", msg.getMessageBody ());
+		if (version < 4) {
+				// A full-text index of the messages and their senders.
+				// Some builds of SQLite don't include FTS3, in which case
+				// searches fall back to scanning the messages.
+			try {
+				db.execSQL ("CREATE VIRTUAL TABLE sms_search "
+											+ "USING fts3 (message, sender)");
+			} catch (SQLiteException e) {
+				Log.w ("IAmHere", "Full-text search isn't available");
+			}
 
-		try {
-			ret = _db.insertOrThrow ("received_sms", null, cv);
-		} catch (Exception e) {
-			Toast.makeText (_context, e.getMessage (), Toast.LENGTH_LONG).show ();
-			return -1;
+			if (hasTable (db, "sms_search")) {
+				db.execSQL ("CREATE TRIGGER IF NOT EXISTS sms_search_delete "
+							+ "AFTER DELETE ON received_sms BEGIN "
+							+ "DELETE FROM sms_search WHERE docid=old._id; END");
+				db.execSQL ("CREATE TRIGGER IF NOT EXISTS sms_search_update "
+							+ "AFTER UPDATE OF message ON received_sms BEGIN "
+							+ "UPDATE sms_search SET message=new.message "
+							+ "WHERE docid=new._id; END");
+				fillSearchIndex (db);
+			}
 		}
 
-		return ret;
+		if (version < 5) {
+				// A spatial index of the targets with a location. If
+				// SQLite was built without R*Trees, an ordinary index on
+				// the coordinates is used instead.
+			try {
+				db.execSQL ("CREATE VIRTUAL TABLE sms_target_rtree USING "
+							+ "rtree (id, min_lat, max_lat, min_lon, max_lon)");
+			} catch (SQLiteException e) {
+				Log.w ("IAmHere", "R*Tree indexes aren't available");
+			}
+
+			if (hasTable (db, "sms_target_rtree")) {
+				db.execSQL ("CREATE TRIGGER IF NOT EXISTS sms_target_insert "
+							+ "AFTER INSERT ON sms_target "
+							+ "WHEN new.latitude IS NOT NULL BEGIN "
+							+ "INSERT INTO sms_target_rtree VALUES (new._id, "
+							+ "new.latitude, new.latitude, "
+							+ "new.longitude, new.longitude); END");
+				db.execSQL ("CREATE TRIGGER IF NOT EXISTS sms_target_delete "
+							+ "AFTER DELETE ON sms_target BEGIN "
+							+ "DELETE FROM sms_target_rtree "
+							+ "WHERE id=old._id; END");
+				db.execSQL ("INSERT INTO sms_target_rtree "
+							+ "SELECT _id, latitude, latitude, longitude, "
+							+ "longitude FROM sms_target "
+							+ "WHERE latitude IS NOT NULL");
+			} else
+				db.execSQL ("CREATE INDEX IF NOT EXISTS sms_target_position "
+								+ "ON sms_target (latitude, longitude)");
+		}
+
+		if (version < 6)
+			createSummaries (db);
+
+			// For finding imported messages that are already saved.
+		if (version < 7)
+			db.execSQL ("CREATE INDEX IF NOT EXISTS received_sms_time "
+								+ "ON received_sms (sender_key, timestamp)");
+
+		if (version < 8) {
+			db.execSQL ("ALTER TABLE received_sms "
+							+ "ADD COLUMN coalesced INTEGER NOT NULL DEFAULT 0");
+			db.execSQL ("CREATE INDEX IF NOT EXISTS received_sms_coalesced "
+								+ "ON received_sms (coalesced, sender_key)");
+		}
 	}
 
 	/*
-	 * Save the details of a self-sent geo-tagged SMS, along with a
-	 * time stamp.
+	 * Create the message counts, and the summary of each sender, which
+	 * are kept up to date by triggers, so they can be read without
+	 * scanning the messages. Each sender's position is the first location
+	 * in their latest message that has one.
 	 */
-	public long
-	addSelfSentRecord (
-		String		msg
+	private void
+	createSummaries (
+		SQLiteDatabase	db
 	) {
-		if (_db == null)
-			return -1;
+		db.execSQL ("CREATE TABLE IF NOT EXISTS sms_counts ("
+					+ "_id INTEGER PRIMARY KEY, "
+					+ "total INTEGER NOT NULL, "
+					+ "unread INTEGER NOT NULL)");
+		db.execSQL ("CREATE TABLE IF NOT EXISTS sender_summary ("
+					+ "sender_key VARCHAR PRIMARY KEY, "
+					+ "phone VARCHAR NULL, "
+					+ "total INTEGER NOT NULL DEFAULT 0, "
+					+ "unread INTEGER NOT NULL DEFAULT 0, "
+					+ "last_id INTEGER NULL, "
+					+ "last_timestamp INTEGER NULL, "
+					+ "position_target INTEGER NULL)");
+		db.execSQL ("CREATE INDEX IF NOT EXISTS sender_summary_position "
+								+ "ON sender_summary (position_target)");
 
-		ContentValues	cv = new ContentValues (4);
-		Date			d = new Date ();
-		long			ret = -1;
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sms_counts_insert "
+					+ "AFTER INSERT ON received_sms BEGIN "
+					+ "UPDATE sms_counts SET total=total+1, "
+					+ "unread=unread+(new.viewed=0) WHERE _id=1; END");
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sms_counts_delete "
+					+ "AFTER DELETE ON received_sms BEGIN "
+					+ "UPDATE sms_counts SET total=total-1, "
+					+ "unread=unread-(old.viewed=0) WHERE _id=1; END");
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sms_counts_viewed "
+					+ "AFTER UPDATE OF viewed ON received_sms "
+					+ "WHEN old.viewed<>new.viewed BEGIN "
+					+ "UPDATE sms_counts SET "
+					+ "unread=unread+(new.viewed=0)-(old.viewed=0) "
+					+ "WHERE _id=1; END");
+
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sender_summary_insert "
+					+ "AFTER INSERT ON received_sms "
+					+ "WHEN new.sender_key IS NOT NULL BEGIN "
+					+ "INSERT OR IGNORE INTO sender_summary (sender_key) "
+					+ "VALUES (new.sender_key); "
+					+ "UPDATE sender_summary SET phone=new.phone, "
+					+ "total=total+1, unread=unread+(new.viewed=0), "
+					+ "last_id=new._id, last_timestamp="
+					+ "MAX(IFNULL(last_timestamp, 0), new.timestamp) "
+					+ "WHERE sender_key=new.sender_key; END");
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sender_summary_delete "
+					+ "AFTER DELETE ON received_sms "
+					+ "WHEN old.sender_key IS NOT NULL BEGIN "
+					+ "UPDATE sender_summary SET total=total-1, "
+					+ "unread=unread-(old.viewed=0) "
+					+ "WHERE sender_key=old.sender_key; "
+					+ "DELETE FROM sender_summary "
+					+ "WHERE sender_key=old.sender_key AND total<=0; "
+					+ "UPDATE sender_summary SET last_id=(SELECT MAX(_id) "
+					+ "FROM received_sms WHERE sender_key=old.sender_key) "
+					+ "WHERE sender_key=old.sender_key AND last_id=old._id; "
+					+ "UPDATE sender_summary SET last_timestamp="
+					+ "(SELECT MAX(timestamp) FROM received_sms "
+					+ "WHERE sender_key=old.sender_key) "
+					+ "WHERE sender_key=old.sender_key "
+					+ "AND last_timestamp=old.timestamp; END");
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sender_summary_viewed "
+					+ "AFTER UPDATE OF viewed ON received_sms "
+					+ "WHEN old.viewed<>new.viewed "
+					+ "AND new.sender_key IS NOT NULL BEGIN "
+					+ "UPDATE sender_summary SET "
+					+ "unread=unread+(new.viewed=0)-(old.viewed=0) "
+					+ "WHERE sender_key=new.sender_key; END");
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sender_summary_timestamp "
+					+ "AFTER UPDATE OF timestamp ON received_sms "
+					+ "WHEN new.sender_key IS NOT NULL BEGIN "
+					+ "UPDATE sender_summary SET last_timestamp="
+					+ "MAX(IFNULL(last_timestamp, 0), new.timestamp) "
+					+ "WHERE sender_key=new.sender_key; END");
+
+			// A target replaces the sender's position if it's in a later
+			// message. When the position's target is deleted, the next
+			// latest one is found.
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sender_position_insert "
+					+ "AFTER INSERT ON sms_target "
+					+ "WHEN new.latitude IS NOT NULL BEGIN "
+					+ "UPDATE sender_summary SET position_target=new._id "
+					+ "WHERE sender_key=(SELECT sender_key FROM received_sms "
+					+ "WHERE _id=new.sms_id) AND (position_target IS NULL "
+					+ "OR new.sms_id>(SELECT sms_id FROM sms_target "
+					+ "WHERE _id=position_target)); END");
+		db.execSQL ("CREATE TRIGGER IF NOT EXISTS sender_position_delete "
+					+ "AFTER DELETE ON sms_target BEGIN "
+					+ "UPDATE sender_summary SET position_target="
+					+ LATEST_POSITION + " WHERE position_target=old._id; END");
+
+		db.execSQL ("INSERT OR REPLACE INTO sms_counts (_id, total, unread) "
+					+ "SELECT 1, (SELECT COUNT(*) FROM received_sms), "
+					+ "(SELECT COUNT(*) FROM received_sms WHERE viewed=0)");
+		db.execSQL ("INSERT OR REPLACE INTO sender_summary (sender_key, "
+					+ "total, unread, last_id, last_timestamp) "
+					+ "SELECT sender_key, COUNT(*), SUM(viewed=0), MAX(_id), "
+					+ "MAX(timestamp) FROM received_sms "
+					+ "WHERE sender_key IS NOT NULL GROUP BY sender_key");
+		db.execSQL ("UPDATE sender_summary SET phone=(SELECT phone "
+					+ "FROM received_sms WHERE _id=last_id), "
+					+ "position_target=" + LATEST_POSITION);
+	}
 
-		cv.put ("timestamp", d.getTime ());
-		cv.put ("viewed", 0);
-		cv.put ("phone", "Self");
-		cv.put ("message", msg);
+	/*
+	 * Does the database contain a table with this name?
+	 */
+	private static boolean
+	hasTable (
+		SQLiteDatabase	db,
+		String			name
+	) {
+		Cursor		c = db.rawQuery ("SELECT 1 FROM sqlite_master WHERE name=?",
+														new String[] {name});
 
 		try {
-			ret = _db.insertOrThrow ("received_sms", null, cv);
-		} catch (Exception e) {
-			Toast.makeText (_context, e.getMessage (), Toast.LENGTH_LONG).show ();
-			return -1;
+			return c.moveToFirst ();
+		} finally {
+			c.close ();
 		}
+	}
 
-		return ret;
+	/*
+	 * Add the records saved before the search index existed to it.
+	 * Contact names are looked up once per phone number.
+	 */
+	private void
+	fillSearchIndex (
+		SQLiteDatabase	db
+	) {
+		db.execSQL ("INSERT INTO sms_search (docid, message, sender) "
+							+ "SELECT _id, message, phone FROM received_sms");
+
+		Cursor			c = db.rawQuery ("SELECT DISTINCT phone "
+												+ "FROM received_sms", null);
+		SQLiteStatement	st = db.compileStatement ("UPDATE sms_search "
+							+ "SET sender=? WHERE docid IN (SELECT _id "
+							+ "FROM received_sms WHERE phone=?)");
+
+		try {
+			while (c.moveToNext ()) {
+				String		phone = c.getString (0);
+				String		sender = searchSender (phone);
+
+				if (sender.equals (phone))
+					continue;
+
+				st.bindString (1, sender);
+				st.bindString (2, phone);
+				st.execute ();
+			}
+		} finally {
+			c.close ();
+			st.close ();
+		}
 	}
 
 	/*
-	 * Load details of the specified message.
+	 * Return the sender text indexed for a phone number. This is the
+	 * number, preceded by the contact's name if there is one.
 	 */
-	public boolean
-	getDetails (
-		long		id,
-		String		details[]
+	private String
+	searchSender (
+		String		phone
 	) {
-		if (_db == null)
-			return false;
+		String		name = ContactNameCache.getInstance (_context).getName (
+																	phone);
 
-		Cursor		c;
-		String		columns[] = new String [] {"phone", "message"};
-		boolean		found = false;
+		if (name == null || name.equals (phone))
+			return phone;
 
-		c = _db.query ("received_sms", columns, "_id=" + id, null, null,
-																null, null);
-		if (c != null) {
-			if (c.moveToFirst ()) {
-				details[0] = c.getString (c.getColumnIndex ("phone"));
-				details[1] = c.getString (c.getColumnIndex ("message"));
-				found = true;
+		return name + " " + phone;
+	}
+
+	/*
+	 * Add a message to the search index, if there is one. Called inside
+	 * a transaction. Changes and deletions are handled by triggers.
+	 */
+	private void
+	indexMessage (
+		SQLiteDatabase	db,
+		long			id,
+		String			phone,
+		String			message
+	) {
+		if (!_searchable)
+			return;
+
+		SQLiteStatement	st = statement (db, INSERT_SEARCH);
+
+		st.bindLong (1, id);
+		bindText (st, 2, message);
+		bindText (st, 3, searchSender (phone));
+		st.executeInsert ();
+	}
+
+	/*
+	 * Work out the sender keys of records saved before they were stored.
+	 */
+	private void
+	fillSenderKeys (
+		SQLiteDatabase	db
+	) {
+		Cursor			c = db.query ("received_sms",
+									new String[] {"_id", "phone"},
+									"sender_key IS NULL", null, null, null, null);
+		SQLiteStatement	st = db.compileStatement (
+						"UPDATE received_sms SET sender_key=? WHERE _id=?");
+
+		try {
+			while (c.moveToNext ()) {
+				st.bindString (1, PhoneNumbers.senderKey (_context,
+														c.getString (1)));
+				st.bindLong (2, c.getLong (0));
+				st.execute ();
 			}
-			
+		} finally {
 			c.close ();
+			st.close ();
 		}
+	}
 
-		return found;
+	/*
+	 * Start a transaction, so that several changes are committed together.
+	 */
+	public void
+	beginTransaction () {
+		SQLiteDatabase	db = writer ();
+
+		if (db != null)
+			db.beginTransaction ();
 	}
 
 	/*
-	 * Flag the specified message as read.
+	 * Mark the current transaction as successful, so it will be committed.
 	 */
-	public boolean
-	flagAsRead (
-		long		id
+	public void
+	setTransactionSuccessful () {
+		SQLiteDatabase	db = writer ();
+
+		if (db != null)
+			db.setTransactionSuccessful ();
+	}
+
+	/*
+	 * End the current transaction, committing it if it was successful.
+	 */
+	public void
+	endTransaction () {
+		SQLiteDatabase	db = writer ();
+
+		if (db != null)
+			db.endTransaction ();
+	}
+
+	/*
+	 * Return the compiled form of a statement on the writer's connection,
+	 * compiling it the first time it's used. The statements are only used
+	 * inside a transaction, which stops two threads binding the same
+	 * statement at once.
+	 */
+	private SQLiteStatement
+	statement (
+		SQLiteDatabase	db,
+		String			sql
 	) {
+		SQLiteStatement	st = _statements.get (sql);
+
+		if (st == null) {
+			st = db.compileStatement (sql);
+			_statements.put (sql, st);
+		}
+
+		return st;
+	}
+
+	/*
+	 * Bind a string to a statement, binding null if there isn't one.
+	 */
+	private static void
+	bindText (
+		SQLiteStatement	st,
+		int				index,
+		String			s
+	) {
+		if (s == null)
+			st.bindNull (index);
+		else
+			st.bindString (index, s);
+	}
+
+	/*
+	 * Save the details of a received geo-tagged SMS, along with a time stamp.
+	 */
+	public long
+	addRecord (
+		SmsMessage		msg
+	) {
+		return addRecord (msg.getOriginatingAddress (), msg.getMessageBody ());
+	}
+
+	/*
+	 * Save a received geo-tagged message, which may have been joined from
+	 * several SMS parts, along with a time stamp.
+	 * Returns -1 if it couldn't be saved, or was a duplicate of a message
+	 * saved recently.
+	 */
+	public long
+	addRecord (
+		String		phone,
+		String		message
+	) {
+		long		ids[] = addRecords (new String[] {phone},
+													new String[] {message});
+
+		return (ids == null) ? -1 : ids[0];
+	}
+
+	/*
+	 * Save several received messages in one transaction. A sender's
+	 * coalesced record, if they have one, is kept as an ordinary record.
+	 * Returns the id of each record, or -1 for those that were duplicates
+	 * of messages saved recently. Returns null if none could be saved.
+	 */
+	public long[]
+	addRecords (
+		String		phones[],
+		String		messages[]
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return null;
+
+		DuplicateFilter	filter = DuplicateFilter.getInstance ();
+		int				n = phones.length;
+		String			senderKeys[] = new String[n];
+		long			bodyHashes[] = new long[n];
+		long			ids[] = new long[n];
+		long			now = new Date ().getTime ();
+		int				i;
+
+		db.beginTransaction ();
 		try {
-			_db.execSQL ("UPDATE received_sms SET viewed=1 WHERE _id=" + id);
+			SQLiteStatement	st = statement (db, END_COALESCING);
+
+			for (i = 0; i < n; i++) {
+				senderKeys[i] = PhoneNumbers.senderKey (_context, phones[i]);
+				bodyHashes[i] = DuplicateFilter.bodyHash (messages[i]);
+
+				if (filter.isDuplicate (senderKeys[i], bodyHashes[i], now)) {
+					ids[i] = -1;
+					continue;
+				}
+
+				bindText (st, 1, senderKeys[i]);
+				st.execute ();
+				ids[i] = insertRecord (db, phones[i], senderKeys[i],
+										messages[i], bodyHashes[i], now, false);
+			}
+
+			db.setTransactionSuccessful ();
 		} catch (Exception e) {
-			Toast.makeText (_context, e.getMessage (), Toast.LENGTH_LONG).show ();
-			return false;
+			reportError (e);
+			return null;
+		} finally {
+			db.endTransaction ();
 		}
 
-		return true;
+			// Added once this transaction has ended. Inside the writer's
+			// transaction that isn't the commit yet, so the writer clears
+			// the filter if its transaction is rolled back.
+		for (i = 0; i < n; i++)
+			filter.add (senderKeys[i], bodyHashes[i], now);
+
+		return ids;
 	}
 
 	/*
-	 * Delete the specified message.
+	 * Save messages read from an archive in one transaction, keeping
+	 * their time stamps. Messages already saved are skipped. Self-sent
+	 * messages, and those saved before duplicates were detected, have no
+	 * body hash for the unique index to catch, so they are looked for by
+	 * sender, text and time stamp. GPX and KML only keep whole seconds,
+	 * so the time stamp is matched to the second.
+	 * Returns the number saved, or -1 if they couldn't be saved.
 	 */
-	public boolean
-	deleteMessage (
-		long		id
+	public int
+	importRecords (
+		long		timestamps[],
+		boolean		viewed[],
+		String		phones[],
+		String		messages[],
+		int			count
 	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return -1;
+
+		int				saved = 0;
+		int				i;
+
+		db.beginTransaction ();
 		try {
-			_db.delete ("received_sms", "_id=" + id, null);
+			SQLiteStatement	st = statement (db, SAVED_SMS);
+
+			for (i = 0; i < count; i++) {
+				String		senderKey = PhoneNumbers.senderKey (_context,
+																phones[i]);
+				long		bodyHash = DuplicateFilter.bodyHash (messages[i]);
+
+				if (senderKey != null) {
+					long		second = timestamps[i] - timestamps[i] % 1000;
+
+					st.bindString (1, senderKey);
+					st.bindLong (2, second);
+					st.bindLong (3, second + 1000);
+					bindText (st, 4, messages[i]);
+					if (st.simpleQueryForLong () > 0)
+						continue;
+				}
+
+				if (insertRecord (db, phones[i], senderKey, messages[i],
+								bodyHash, timestamps[i], viewed[i]) >= 0)
+					saved++;
+			}
+
+			db.setTransactionSuccessful ();
 		} catch (Exception e) {
-			Toast.makeText (_context, e.getMessage (), Toast.LENGTH_LONG).show ();
-			return false;
+			reportError (e);
+			return -1;
+		} finally {
+			db.endTransaction ();
 		}
 
-		return true;
+		return saved;
 	}
 
 	/*
-	 * Return a cursor that iterates over all the received messages.
+	 * Insert a received message and its decoded targets. Called inside a
+	 * transaction. Returns -1 if the message is already saved.
 	 */
-	public Cursor
-	cursor () {
-		if (_db == null)
-			return null;
+	private long
+	insertRecord (
+		SQLiteDatabase	db,
+		String			phone,
+		String			senderKey,
+		String			message,
+		long			bodyHash,
+		long			time,
+		boolean			viewed
+	) {
+		SQLiteStatement	st = statement (db, INSERT_SMS);
+		long			id;
+
+		st.bindLong (1, time);
+		st.bindLong (2, viewed ? 1 : 0);
+		st.bindString (3, phone);
+		bindText (st, 4, senderKey);
+		bindText (st, 5, message);
+		st.bindLong (6, bodyHash);
+		st.bindLong (7, DuplicateFilter.bucket (time));
 
-		return _db.query ("received_sms", null, null, null, null, null,
-																"_id DESC");
+			// Caught here, rather than by the caller, so that it doesn't
+			// roll back the rest of the transaction.
+		try {
+			id = st.executeInsert ();
+		} catch (SQLiteConstraintException e) {
+			return -1;		// Already saved, before the filter knew of it.
+		}
+
+		storeTargets (db, id, DecodedMessage.decode (message));
+		indexMessage (db, id, phone, message);
+
+		return id;
 	}
-	
+
 	/*
-	 * Delete all the records.
+	 * Replace the message in the sender's coalesced record, which holds
+	 * their latest message while they are over the rate limit, marking it
+	 * as unread. Returns the id of the record, or -1 if the sender has no
+	 * coalesced record or it couldn't be saved.
 	 */
-	public boolean
-	deleteAll ()
-	{
-		if (_db == null)
-			return false;
-		
-		_db.delete ("received_sms", null, null);
+	public long
+	updateCoalescedRecord (
+		String		phone,
+		String		message
+	) {
+		SQLiteDatabase	db = writer ();
 
-		return true;
+		if (db == null)
+			return -1;
+
+		String			senderKey = PhoneNumbers.senderKey (_context, phone);
+		long			bodyHash = DuplicateFilter.bodyHash (message);
+		long			now = new Date ().getTime ();
+		long			id = -1;
+
+		if (senderKey == null)
+			return -1;
+
+		db.beginTransaction ();
+		try {
+			SQLiteStatement	st = statement (db, COALESCED_SMS);
+
+			st.bindString (1, senderKey);
+			try {
+				id = st.simpleQueryForLong ();
+			} catch (SQLiteDoneException e) {
+				id = -1;		// The sender has no coalesced record.
+			}
+
+			if (id >= 0) {
+				st = statement (db, REPLACE_SMS);
+				st.bindLong (1, now);
+				bindText (st, 2, message);
+				st.bindLong (3, bodyHash);
+				st.bindLong (4, DuplicateFilter.bucket (now));
+				st.bindLong (5, id);
+				try {
+					st.execute ();
+					storeTargets (db, id, DecodedMessage.decode (message));
+				} catch (SQLiteConstraintException e) {
+					// The same message is already saved.
+				}
+			}
+
+			db.setTransactionSuccessful ();
+		} catch (Exception e) {
+			reportError (e);
+			return -1;
+		} finally {
+			db.endTransaction ();
+		}
+
+		if (id >= 0)
+			DuplicateFilter.getInstance ().add (senderKey, bodyHash, now);
+
+		return id;
+	}
+
+	/*
+	 * Save a message as the sender's coalesced record, which later
+	 * messages over the rate limit replace.
+	 * Returns the id of the record, or -1 if it couldn't be saved.
+	 */
+	public long
+	addCoalescedRecord (
+		String		phone,
+		String		message
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return -1;
+
+		String			senderKey = PhoneNumbers.senderKey (_context, phone);
+		long			bodyHash = DuplicateFilter.bodyHash (message);
+		long			now = new Date ().getTime ();
+		long			id;
+
+		db.beginTransaction ();
+		try {
+			id = insertRecord (db, phone, senderKey, message, bodyHash, now,
+																		false);
+			if (id >= 0) {
+				SQLiteStatement	st = statement (db, MARK_COALESCED);
+
+				st.bindLong (1, id);
+				st.execute ();
+			}
+
+			db.setTransactionSuccessful ();
+		} catch (Exception e) {
+			reportError (e);
+			return -1;
+		} finally {
+			db.endTransaction ();
+		}
+
+		if (id >= 0)
+			DuplicateFilter.getInstance ().add (senderKey, bodyHash, now);
+
+		return id;
+	}
+
+	/*
+	 * Save the details of a self-sent geo-tagged SMS, along with a
+	 * time stamp.
+	 */
+	public long
+	addSelfSentRecord (
+		String		msg
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return -1;
+
+		long		ret = -1;
+
+		db.beginTransaction ();
+		try {
+			SQLiteStatement	st = statement (db, INSERT_SMS);
+
+				// Self-sent messages aren't checked for duplicates.
+			st.bindLong (1, new Date ().getTime ());
+			st.bindLong (2, 0);
+			st.bindString (3, "Self");
+			bindText (st, 4, PhoneNumbers.senderKey (_context, "Self"));
+			bindText (st, 5, msg);
+			st.bindNull (6);
+			st.bindNull (7);
+			ret = st.executeInsert ();
+			storeTargets (db, ret, DecodedMessage.decode (msg));
+			indexMessage (db, ret, "Self", msg);
+			db.setTransactionSuccessful ();
+		} catch (Exception e) {
+			reportError (e);
+			return -1;
+		} finally {
+			db.endTransaction ();
+		}
+
+		return ret;
+	}
+
+	/*
+	 * Load details of the specified message.
+	 */
+	public boolean
+	getDetails (
+		long		id,
+		String		details[]
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return false;
+
+		Cursor		c = db.rawQuery (SELECT_DETAILS,
+										new String[] {Long.toString (id)});
+		boolean		found = false;
+
+		try {
+			if (c.moveToFirst ()) {
+				details[0] = c.getString (0);
+				details[1] = c.getString (1);
+				found = true;
+			}
+		} finally {
+			c.close ();
+		}
+
+		return found;
+	}
+
+	/*
+	 * Return the locations and text of the specified message, or null if
+	 * it doesn't exist. Messages saved before decoding was added are
+	 * decoded now, and the writer is asked to store the result.
+	 */
+	public DecodedMessage
+	getDecodedMessage (
+		final long	id
+	) {
+		SQLiteDatabase	db = reader ();
+
+		if (db == null)
+			return null;
+
+		Cursor		c = db.rawQuery (SELECT_DECODED,
+										new String[] {Long.toString (id)});
+		boolean		decoded;
+		String		message;
+
+		try {
+			if (!c.moveToFirst ())
+				return null;
+
+			decoded = (c.getInt (0) != 0);
+			message = c.getString (1);
+		} finally {
+			c.close ();
+		}
+
+		if (!decoded) {
+			DatabaseWriter.getInstance (_context).submit (
+										new DatabaseWriter.Write<Boolean> () {
+				public Boolean run (Database db) {
+					return Boolean.valueOf (db.decodeMessages (new long[] {id}));
+				}
+			});
+
+			return DecodedMessage.decode ((message == null) ? "" : message);
+		}
+
+		return loadTargets (db, id);
+	}
+
+	/*
+	 * Decode and store those of the messages that haven't been decoded,
+	 * in one transaction. Called on the writer thread.
+	 * Returns false if they couldn't be stored.
+	 */
+	public boolean
+	decodeMessages (
+		long		ids[]
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return false;
+
+		db.beginTransaction ();
+		try {
+			int			i;
+
+			for (i = 0; i < ids.length; i++) {
+				Cursor		c = db.rawQuery (SELECT_DECODED,
+									new String[] {Long.toString (ids[i])});
+				String		message;
+
+				try {
+						// Deleted, or decoded since it was queued.
+					if (!c.moveToFirst () || c.getInt (0) != 0)
+						continue;
+
+					message = c.getString (1);
+				} finally {
+					c.close ();
+				}
+
+				storeTargets (db, ids[i], DecodedMessage.decode (
+										(message == null) ? "" : message));
+			}
+
+			db.setTransactionSuccessful ();
+		} catch (Exception e) {
+			reportError (e);
+			return false;
+		} finally {
+			db.endTransaction ();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Store the locations and text of a message, replacing any stored
+	 * before, and flag the message as decoded. Called inside a transaction.
+	 */
+	private void
+	storeTargets (
+		SQLiteDatabase	db,
+		long			id,
+		DecodedMessage	m
+	) {
+		String			parts[] = m.getParts ();
+		Location		locations[] = m.getLocations ();
+		int				n = Math.max (parts.length, locations.length);
+		SQLiteStatement	st = statement (db, DELETE_TARGETS);
+		int				i;
+
+		st.bindLong (1, id);
+		st.execute ();
+
+		st = statement (db, INSERT_TARGET);
+		for (i = 0; i < n; i++) {
+			st.bindLong (1, id);
+			st.bindLong (2, i);
+			bindText (st, 7, (i < parts.length) ? parts[i] : null);
+
+				// A missing location is stored as text only, rather than
+				// failing the whole transaction.
+			if (i < locations.length && locations[i] != null) {
+				Location	loc = locations[i];
+
+				st.bindDouble (3, loc.getLatitude ());
+				st.bindDouble (4, loc.getLongitude ());
+				if (loc.hasAltitude ())
+					st.bindDouble (5, loc.getAltitude ());
+				else
+					st.bindNull (5);
+				if (loc.hasAccuracy ())
+					st.bindDouble (6, loc.getAccuracy ());
+				else
+					st.bindNull (6);
+			} else {
+				st.bindNull (3);
+				st.bindNull (4);
+				st.bindNull (5);
+				st.bindNull (6);
+			}
+
+			st.executeInsert ();
+		}
+
+		st = statement (db, MARK_DECODED);
+		st.bindLong (1, id);
+		st.execute ();
+	}
+
+	/*
+	 * Load the stored locations and text of a message.
+	 */
+	private DecodedMessage
+	loadTargets (
+		SQLiteDatabase	db,
+		long			id
+	) {
+		Cursor		c = db.rawQuery (SELECT_TARGETS,
+										new String[] {Long.toString (id)});
+		String		parts[];
+		Location	locations[];
+		int			numLocations = 0;
+		int			i;
+
+		try {
+			int			n = c.getCount ();
+
+			parts = new String[n];
+			locations = new Location[n];
+
+			for (i = 0; c.moveToNext (); i++) {
+				parts[i] = c.getString (0);
+
+				if (!c.isNull (1)) {
+					Location	loc = new Location ("GeoUri");
+
+					loc.setLatitude (c.getDouble (1));
+					loc.setLongitude (c.getDouble (2));
+					if (!c.isNull (3))
+						loc.setAltitude (c.getDouble (3));
+					if (!c.isNull (4))
+						loc.setAccuracy (c.getFloat (4));
+					locations[numLocations++] = loc;
+				}
+			}
+		} finally {
+			c.close ();
+		}
+
+			// Only the last row can be text without a location.
+		if (numLocations < locations.length) {
+			Location	a[] = new Location[numLocations];
+
+			System.arraycopy (locations, 0, a, 0, numLocations);
+			locations = a;
+		}
+
+		return new DecodedMessage (parts, locations);
+	}
+
+	/*
+	 * Flag the specified message as read.
+	 */
+	public boolean
+	flagAsRead (
+		long		id
+	) {
+		return flagAsRead (new long[] {id});
+	}
+
+	/*
+	 * Flag several messages as read, in one transaction.
+	 */
+	public boolean
+	flagAsRead (
+		long		ids[]
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return false;
+
+		db.beginTransaction ();
+		try {
+			SQLiteStatement	st = statement (db, MARK_READ);
+			int				i;
+
+			for (i = 0; i < ids.length; i++) {
+				st.bindLong (1, ids[i]);
+				st.execute ();
+			}
+
+			db.setTransactionSuccessful ();
+		} catch (Exception e) {
+			reportError (e);
+			return false;
+		} finally {
+			db.endTransaction ();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Delete the specified message.
+	 */
+	public boolean
+	deleteMessage (
+		long		id
+	) {
+		return deleteMessages (new long[] {id});
+	}
+
+	/*
+	 * Delete several messages, in one transaction.
+	 */
+	public boolean
+	deleteMessages (
+		long		ids[]
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return false;
+
+		db.beginTransaction ();
+		try {
+			SQLiteStatement	targets = statement (db, DELETE_TARGETS);
+			SQLiteStatement	st = statement (db, DELETE_SMS);
+			int				i;
+
+			for (i = 0; i < ids.length; i++) {
+				targets.bindLong (1, ids[i]);
+				targets.execute ();
+				st.bindLong (1, ids[i]);
+				st.execute ();
+			}
+
+			db.setTransactionSuccessful ();
+		} catch (Exception e) {
+			reportError (e);
+			return false;
+		} finally {
+			db.endTransaction ();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Flag all the messages that match a filter as read, in one
+	 * statement. See where () for the meaning of the sender key and query.
+	 * Called on the writer thread.
+	 */
+	public boolean
+	flagAsRead (
+		String		senderKey,
+		String		query
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return false;
+
+		ArrayList<String>	args = new ArrayList<String> ();
+		String				sql = "UPDATE received_sms SET viewed=1"
+										+ where (senderKey, query, args);
+
+		sql += (args.isEmpty () ? " WHERE " : " AND ") + "viewed=0";
+
+		try {
+			db.execSQL (sql, args.toArray ());
+		} catch (Exception e) {
+			reportError (e);
+			return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Delete all the messages that match a filter, and their targets, in
+	 * one transaction. See where () for the meaning of the sender key and
+	 * query. Called on the writer thread.
+	 */
+	public boolean
+	deleteMessages (
+		String		senderKey,
+		String		query
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return false;
+
+		ArrayList<String>	args = new ArrayList<String> ();
+		String				ids = "(SELECT _id FROM received_sms"
+										+ where (senderKey, query, args) + ")";
+		Object				a[] = args.toArray ();
+
+			// The ids are selected before anything is deleted, so the
+			// search index can be changed by the triggers as they go.
+		db.beginTransaction ();
+		try {
+			db.execSQL ("DELETE FROM sms_target WHERE sms_id IN " + ids, a);
+			db.execSQL ("DELETE FROM received_sms WHERE _id IN " + ids, a);
+			db.setTransactionSuccessful ();
+		} catch (Exception e) {
+			reportError (e);
+			return false;
+		} finally {
+			db.endTransaction ();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Return a cursor over a page of messages that match a filter, newest
+	 * first, with ids below beforeId. Only the columns the list shows are
+	 * read, and long messages are cut short. See where () for the meaning
+	 * of the sender key and query.
+	 */
+	public Cursor
+	page (
+		String		senderKey,
+		String		query,
+		long		beforeId,
+		int			limit
+	) {
+		return page (senderKey, query, "_id<? ORDER BY _id DESC", beforeId,
+																		limit);
+	}
+
+	/*
+	 * Return a cursor over a page of messages that match a filter, oldest
+	 * first, with ids above afterId. The columns are those of page ().
+	 */
+	public Cursor
+	pageAfter (
+		String		senderKey,
+		String		query,
+		long		afterId,
+		int			limit
+	) {
+		return page (senderKey, query, "_id>? ORDER BY _id", afterId, limit);
+	}
+
+	/*
+	 * Return a cursor over a page of messages that match a filter, and
+	 * a condition on the id, which is bound to the specified value.
+	 */
+	private Cursor
+	page (
+		String		senderKey,
+		String		query,
+		String		condition,
+		long		id,
+		int			limit
+	) {
+		SQLiteDatabase	db = reader ();
+
+		if (db == null)
+			return null;
+
+		ArrayList<String>	args = new ArrayList<String> ();
+		StringBuilder		sql = new StringBuilder (PAGE_COLUMNS);
+
+		sql.append (where (senderKey, query, args));
+		sql.append (args.isEmpty () ? " WHERE " : " AND ");
+		sql.append (condition);
+		sql.append (" LIMIT ");
+		sql.append (limit);
+		args.add (Long.toString (id));
+
+		try {
+			return db.rawQuery (sql.toString (),
+								args.toArray (new String[args.size ()]));
+		} catch (SQLiteException e) {
+			reportError (e);
+			return null;
+		}
+	}
+
+	/*
+	 * Return the WHERE clause of a filter on the messages, adding its
+	 * arguments to the list, or an empty string if there's no filter.
+	 * If the sender key isn't null, only that sender's messages match.
+	 * If the query isn't null, only messages containing words that start
+	 * with each of its words match, searching the message and the
+	 * sender's name and number.
+	 */
+	private String
+	where (
+		String				senderKey,
+		String				query,
+		ArrayList<String>	args
+	) {
+		StringBuilder	sb = new StringBuilder ();
+		String			words[] = (query == null) ? null : searchWords (query);
+
+		if (senderKey != null) {
+			sb.append (" WHERE sender_key=?");
+			args.add (senderKey);
+		}
+
+		if (words == null || words.length == 0)
+			return sb.toString ();
+
+		sb.append ((senderKey == null) ? " WHERE " : " AND ");
+
+		if (_searchable) {
+			StringBuilder	match = new StringBuilder ();
+			int				i;
+
+			for (i = 0; i < words.length; i++) {
+				if (i > 0)
+					match.append (' ');
+				match.append (words[i]);
+				match.append ('*');
+			}
+
+			sb.append ("_id IN (SELECT docid FROM sms_search "
+											+ "WHERE sms_search MATCH ?)");
+			args.add (match.toString ());
+		} else {
+				// Without the index only the message and number can be
+				// searched, and every row has to be scanned.
+			int				i;
+
+			for (i = 0; i < words.length; i++) {
+				if (i > 0)
+					sb.append (" AND ");
+				sb.append ("(message LIKE ? OR phone LIKE ?)");
+				args.add ("%" + words[i] + "%");
+				args.add ("%" + words[i] + "%");
+			}
+		}
+
+		return sb.toString ();
+	}
+
+	/*
+	 * Split a search query into words of letters and digits, dropping
+	 * anything the full-text query syntax would treat specially.
+	 */
+	private static String[]
+	searchWords (
+		String		query
+	) {
+		ArrayList<String>	words = new ArrayList<String> ();
+		int					i, start = -1;
+		int					n = query.length ();
+
+		for (i = 0; i <= n; i++) {
+			boolean		inWord = (i < n
+								&& Character.isLetterOrDigit (query.charAt (i)));
+
+			if (inWord && start < 0)
+				start = i;
+			else if (!inWord && start >= 0) {
+				words.add (query.substring (start, i));
+				start = -1;
+			}
+		}
+
+		return words.toArray (new String[words.size ()]);
+	}
+
+	/*
+	 * Return a cursor over the targets inside a bounding box, with the
+	 * columns sms_id, latitude and longitude, or null if they can't be
+	 * read. If west is greater than east, the box crosses the 180th
+	 * meridian. At most limit targets are returned, or all of them if
+	 * limit is zero or less.
+	 */
+	public Cursor
+	targetsInBox (
+		double		south,
+		double		west,
+		double		north,
+		double		east,
+		int			limit
+	) {
+		SQLiteDatabase	db = reader ();
+
+		if (db == null)
+			return null;
+
+		String			box = _spatial ? BOX_RTREE : BOX_INDEX;
+		StringBuilder	sql = new StringBuilder (box);
+		String			args[];
+
+		if (west <= east)
+			args = new String[] {Double.toString (south),
+						Double.toString (north), Double.toString (west),
+						Double.toString (east)};
+		else {
+				// Split into the parts either side of the meridian.
+			sql.append (" UNION ALL ");
+			sql.append (box);
+			args = new String[] {Double.toString (south),
+						Double.toString (north), Double.toString (west),
+						"180", Double.toString (south),
+						Double.toString (north), "-180",
+						Double.toString (east)};
+		}
+
+		if (limit > 0) {
+			sql.append (" LIMIT ");
+			sql.append (limit);
+		}
+
+		try {
+			return db.rawQuery (sql.toString (), args);
+		} catch (SQLiteException e) {
+			reportError (e);
+			return null;
+		}
+	}
+
+	/*
+	 * Return the ids of up to k messages with a target nearest to a
+	 * point, nearest first, or null if they can't be read.
+	 * The search starts with a small box, which grows until it holds k
+	 * messages, so only the targets near the point are read.
+	 */
+	public long[]
+	nearestMessages (
+		double		latitude,
+		double		longitude,
+		int			k
+	) {
+		if (k <= 0)
+			return new long[0];
+
+		HashMap<Long, Float>	distances = new HashMap<Long, Float> ();
+		double					radius = NEAREST_START_RADIUS;
+
+		for (;;) {
+			if (!targetDistances (latitude, longitude, radius, distances))
+				return null;
+
+			if (distances.size () >= k || radius >= NEAREST_MAX_RADIUS)
+				break;
+
+			radius *= 4.0;
+		}
+
+		Long		ids[] = sortByDistance (distances);
+
+			// Targets in the corners of the box may be further away than
+			// ones just outside it, so search again out to the k-th
+			// distance found.
+		if (ids.length >= k) {
+			double		kth = distances.get (ids[k - 1]);
+
+			if (kth > radius) {
+				if (!targetDistances (latitude, longitude, kth, distances))
+					return null;
+				ids = sortByDistance (distances);
+			}
+		}
+
+		int			n = Math.min (k, ids.length);
+		long		a[] = new long[n];
+		int			i;
+
+		for (i = 0; i < n; i++)
+			a[i] = ids[i];
+
+		return a;
+	}
+
+	/*
+	 * Find the targets within a square around a point, and store the
+	 * distance to each message's nearest target.
+	 * Returns false if they can't be read.
+	 */
+	private boolean
+	targetDistances (
+		double					latitude,
+		double					longitude,
+		double					radius,
+		HashMap<Long, Float>	distances
+	) {
+		double		dLat = radius / METRES_PER_DEGREE;
+		double		cos = Math.cos (Math.toRadians (latitude));
+		double		south = Math.max (latitude - dLat, -90.0);
+		double		north = Math.min (latitude + dLat, 90.0);
+		double		west, east;
+
+		if (cos * 180.0 * METRES_PER_DEGREE <= radius) {
+			west = -180.0;
+			east = 180.0;
+		} else {
+			double		dLon = radius / (METRES_PER_DEGREE * cos);
+
+			west = longitude - dLon;
+			east = longitude + dLon;
+			if (west < -180.0)
+				west += 360.0;
+			if (east > 180.0)
+				east -= 360.0;
+		}
+
+		Cursor		c = targetsInBox (south, west, north, east, 0);
+		float		results[] = new float[1];
+
+		if (c == null)
+			return false;
+
+		distances.clear ();
+		try {
+			while (c.moveToNext ()) {
+				Long		id = Long.valueOf (c.getLong (0));
+				Float		d;
+
+				Location.distanceBetween (latitude, longitude,
+										c.getDouble (1), c.getDouble (2),
+										results);
+
+				d = distances.get (id);
+				if (d == null || results[0] < d.floatValue ())
+					distances.put (id, Float.valueOf (results[0]));
+			}
+		} finally {
+			c.close ();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Return the message ids, sorted by their distance.
+	 */
+	private static Long[]
+	sortByDistance (
+		final HashMap<Long, Float>	distances
+	) {
+		Long		ids[] = distances.keySet ().toArray (
+											new Long[distances.size ()]);
+
+		Arrays.sort (ids, new Comparator<Long> () {
+			public int compare (Long a, Long b) {
+				return distances.get (a).compareTo (distances.get (b));
+			}
+		});
+
+		return ids;
+	}
+
+	/*
+	 * Delete the messages saved before a time, in batches.
+	 * Returns the number deleted.
+	 */
+	public int
+	deleteOlderThan (
+		long		time
+	) {
+			// The oldest messages have the lowest ids, so scanning in id
+			// order finds them without an index on the time stamp.
+		return deleteInBatches ("SELECT _id FROM received_sms "
+							+ "WHERE timestamp<? ORDER BY _id LIMIT "
+							+ DELETE_BATCH, new String[] {Long.toString (time)});
+	}
+
+	/*
+	 * Delete all but the newest messages from each sender, in batches.
+	 * If positionsOnly is set, only messages with no text are counted and
+	 * deleted. Returns the number deleted.
+	 */
+	public int
+	trimSenders (
+		int			keep,
+		boolean		positionsOnly
+	) {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return 0;
+
+		String		filter = positionsOnly ? " WHERE " + POSITION_ONLY : "";
+		String		senders[];
+		int			deleted = 0;
+		int			i;
+
+		if (positionsOnly)
+			decodePending ();
+
+		Cursor		c = db.rawQuery ("SELECT sender_key FROM received_sms"
+							+ filter + " GROUP BY sender_key HAVING COUNT(*)>"
+							+ keep, null);
+
+		try {
+			senders = new String[c.getCount ()];
+			for (i = 0; c.moveToNext (); i++)
+				senders[i] = c.getString (0);
+		} finally {
+			c.close ();
+		}
+
+		for (i = 0; i < senders.length; i++) {
+			if (senders[i] == null)
+				continue;
+
+			deleted += deleteInBatches ("SELECT _id FROM received_sms "
+							+ "WHERE sender_key=?"
+							+ (positionsOnly ? " AND " + POSITION_ONLY : "")
+							+ " ORDER BY _id DESC LIMIT " + DELETE_BATCH
+							+ " OFFSET " + keep, new String[] {senders[i]});
+		}
+
+		return deleted;
+	}
+
+	/*
+	 * Decode the messages saved before decoding was added, so that they
+	 * can be selected by their contents. They are stored in batches by
+	 * the writer. Must not be called on the main thread.
+	 */
+	public void
+	decodePending () {
+		SQLiteDatabase	db = writer ();
+		long			ids[];
+		int				i;
+
+		if (db == null)
+			return;
+
+		do {
+			Cursor		c = db.rawQuery ("SELECT _id FROM received_sms "
+									+ "WHERE decoded=0 LIMIT " + DELETE_BATCH,
+									null);
+
+			try {
+				ids = new long[c.getCount ()];
+				for (i = 0; c.moveToNext (); i++)
+					ids[i] = c.getLong (0);
+			} finally {
+				c.close ();
+			}
+
+			if (ids.length == 0 || !decodeThroughWriter (ids))
+				break;
+		} while (ids.length == DELETE_BATCH);
+	}
+
+	/*
+	 * Decode messages on the writer thread, waiting until they have been.
+	 */
+	private boolean
+	decodeThroughWriter (
+		final long	ids[]
+	) {
+		Boolean		ok = DatabaseWriter.getInstance (_context).execute (
+										new DatabaseWriter.Write<Boolean> () {
+			public Boolean run (Database db) {
+				return Boolean.valueOf (db.decodeMessages (ids));
+			}
+		});
+
+		return (ok != null && ok.booleanValue ());
+	}
+
+	/*
+	 * Repeatedly select a batch of message ids and delete them, until the
+	 * query finds no more. Returns the number deleted.
+	 */
+	private int
+	deleteInBatches (
+		String		sql,
+		String		args[]
+	) {
+		SQLiteDatabase	db = writer ();
+		int				deleted = 0;
+
+		if (db == null)
+			return 0;
+
+		for (;;) {
+			Cursor		c = db.rawQuery (sql, args);
+			long		ids[];
+			int			i;
+
+			try {
+				ids = new long[c.getCount ()];
+				for (i = 0; c.moveToNext (); i++)
+					ids[i] = c.getLong (0);
+			} finally {
+				c.close ();
+			}
+
+			if (ids.length == 0 || !deleteThroughWriter (ids))
+				break;
+
+			deleted += ids.length;
+			if (ids.length < DELETE_BATCH)
+				break;
+
+			try {
+				Thread.sleep (DELETE_PAUSE);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		return deleted;
+	}
+
+	/*
+	 * Delete messages on the writer thread, waiting until they have been.
+	 */
+	private boolean
+	deleteThroughWriter (
+		final long	ids[]
+	) {
+		Boolean		ok = DatabaseWriter.getInstance (_context).execute (
+										new DatabaseWriter.Write<Boolean> () {
+			public Boolean run (Database db) {
+				return Boolean.valueOf (db.deleteMessages (ids));
+			}
+		});
+
+		return (ok != null && ok.booleanValue ());
+	}
+
+	/*
+	 * Return the free space in the database file to the file system, if
+	 * at least a quarter of it is free. The first time, this switches the
+	 * database to incremental vacuuming, which needs one full VACUUM.
+	 * This can take a while, so it should only be done when the phone
+	 * isn't busy. Called on the writer thread, outside any transaction,
+	 * through DatabaseWriter.compact ().
+	 */
+	public void
+	compact () {
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return;
+
+		String		pages = pragma (db, "PRAGMA page_count");
+		String		free = pragma (db, "PRAGMA freelist_count");
+
+		if (pages == null || free == null)
+			return;
+
+		try {
+			if (Long.parseLong (free) * 4 < Long.parseLong (pages))
+				return;
+
+			if ("2".equals (pragma (db, "PRAGMA auto_vacuum"))) {
+					// Returns a row for each page freed, which execSQL ()
+					// won't accept, and the pages are only freed as the
+					// rows are read.
+				Cursor		c = db.rawQuery ("PRAGMA incremental_vacuum",
+																		null);
+
+				try {
+					while (c.moveToNext ())
+						;
+				} finally {
+					c.close ();
+				}
+			} else {
+				db.execSQL ("PRAGMA auto_vacuum=INCREMENTAL");
+				db.execSQL ("VACUUM");
+
+				if (!"2".equals (pragma (db, "PRAGMA auto_vacuum")))
+					reportError (new SQLiteException (
+								"Couldn't switch to incremental vacuuming"));
+			}
+		} catch (Exception e) {
+			reportError (e);
+		}
+	}
+
+	/*
+	 * Return a cursor over all the messages, oldest first, with the
+	 * columns timestamp, viewed, phone and message, or null if they
+	 * can't be read.
+	 */
+	public Cursor
+	exportMessages () {
+		SQLiteDatabase	db = reader ();
+
+		if (db == null)
+			return null;
+
+		return db.rawQuery ("SELECT timestamp, viewed, phone, message "
+								+ "FROM received_sms ORDER BY _id", null);
+	}
+
+	/*
+	 * Return a cursor over the locations in all the messages, oldest
+	 * first, with the columns timestamp, phone, message, latitude,
+	 * longitude and altitude, or null if they can't be read.
+	 * Messages that haven't been decoded yet are decoded first.
+	 */
+	public Cursor
+	exportTargets () {
+		decodePending ();
+
+		SQLiteDatabase	db = reader ();
+
+		if (db == null)
+			return null;
+
+		return db.rawQuery ("SELECT r.timestamp, r.phone, r.message, "
+								+ "t.latitude, t.longitude, t.altitude "
+								+ "FROM received_sms r, sms_target t "
+								+ "WHERE t.sms_id=r._id "
+								+ "AND t.latitude IS NOT NULL "
+								+ "ORDER BY r._id, t.ordinal", null);
+	}
+
+	/*
+	 * Load the number of messages into counts[0], and the number that
+	 * haven't been read into counts[1]. These are kept up to date as
+	 * messages change, so this doesn't scan the messages.
+	 */
+	public boolean
+	getCounts (
+		int			counts[]
+	) {
+		SQLiteDatabase	db = reader ();
+
+		if (db == null)
+			return false;
+
+		Cursor		c = db.rawQuery ("SELECT total, unread FROM sms_counts "
+														+ "WHERE _id=1", null);
+
+		try {
+			if (!c.moveToFirst ())
+				return false;
+
+			counts[0] = c.getInt (0);
+			counts[1] = c.getInt (1);
+		} finally {
+			c.close ();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Return the number of messages that haven't been read, or zero if
+	 * it can't be read.
+	 */
+	public int
+	getUnreadCount () {
+		int			counts[] = new int[2];
+
+		return getCounts (counts) ? counts[1] : 0;
+	}
+
+	/*
+	 * Return a cursor over the summary of each sender, the most recent
+	 * first, or just the sender with the key if it isn't null. The columns
+	 * are sender_key, phone, total, unread, last_id, last_timestamp,
+	 * latitude and longitude, where the position is null if none of the
+	 * sender's messages has a location.
+	 */
+	public Cursor
+	senderSummaries (
+		String		senderKey
+	) {
+		SQLiteDatabase	db = reader ();
+
+		if (db == null)
+			return null;
+
+		String		sql = "SELECT s.sender_key, s.phone, s.total, s.unread, "
+							+ "s.last_id, s.last_timestamp, t.latitude, "
+							+ "t.longitude FROM sender_summary s LEFT JOIN "
+							+ "sms_target t ON t._id=s.position_target";
+
+		if (senderKey == null)
+			return db.rawQuery (sql + " ORDER BY s.last_id DESC", null);
+		else
+			return db.rawQuery (sql + " WHERE s.sender_key=?",
+													new String[] {senderKey});
+	}
+
+	/*
+	 * Delete all the records.
+	 */
+	public boolean
+	deleteAll ()
+	{
+		SQLiteDatabase	db = writer ();
+
+		if (db == null)
+			return false;
+		
+		db.beginTransaction ();
+		try {
+			db.delete ("sms_target", null, null);
+			db.delete ("received_sms", null, null);
+			db.setTransactionSuccessful ();
+		} finally {
+			db.endTransaction ();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Log an error, and count it against the current thread. The callers
+	 * find out from the return values, and decide what to tell the user.
+	 */
+	private static void
+	reportError (
+		Exception	e
+	) {
+		Log.e ("IAmHere", "Database error", e);
+		_errorCount.set (Integer.valueOf (getErrorCount () + 1));
+	}
+
+	/*
+	 * Return the number of errors reported on the current thread. The
+	 * writer uses this to tell whether a transaction was rolled back.
+	 */
+	public static int
+	getErrorCount () {
+		Integer		n = _errorCount.get ();
+
+		return (n == null) ? 0 : n.intValue ();
 	}
 }
@@ -0,0 +1,449 @@
+/*
+ * This class makes every change to the database on one thread.
+ *
+ * Writes are queued, and the writer thread takes all the writes waiting
+ * in the queue and runs them in a single transaction, so a burst of
+ * writes costs one commit. Callers get a future for the result, or a
+ * callback on the main thread once the write has been committed.
+ *
+ * If anything goes wrong in a transaction, it is rolled back, and each
+ * of its writes is run again in a transaction of its own, so only the
+ * write that failed reports failure. Work that can't be done in a transaction,
+ * such as compacting the database, runs on its own between groups.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+public class DatabaseWriter implements Runnable {
+	private Database					_database;
+	private BlockingQueue<Request<?>>	_queue =
+										new LinkedBlockingQueue<Request<?>> ();
+	private Thread						_thread;
+	private Handler						_mainHandler;
+
+	private static DatabaseWriter		_instance = null;
+
+		// The most writes committed in one transaction.
+	private static final int	MAX_GROUP = 64;
+
+	/*
+	 * A change to the database, run on the writer thread.
+	 */
+	public interface Write<T> {
+		public T run (Database db);
+	}
+
+	/*
+	 * Told the result of a write, on the main thread, once it has been
+	 * committed. The result is null if the write failed.
+	 */
+	public interface Callback<T> {
+		public void done (T result);
+	}
+
+	/*
+	 * A queued write. Its result is held until the transaction it's in
+	 * has ended, then handed to its future and callback.
+	 */
+	private static class Request<T> implements Callable<T> {
+		private final Write<T>		_write;
+		private final Callback<T>	_callback;
+		public final boolean		alone;
+		public final FutureTask<T>	future;
+		private T					_result = null;
+		private RuntimeException	_error = null;
+
+		/*
+		 * Constructor.
+		 */
+		public Request (
+			Write<T>		write,
+			Callback<T>		callback,
+			boolean			alone
+		) {
+			_write = write;
+			_callback = callback;
+			this.alone = alone;
+			future = new FutureTask<T> (this);
+		}
+
+		/*
+		 * Run the write, inside the writer's transaction. Anything from
+		 * an earlier run that was rolled back is forgotten.
+		 */
+		public void
+		perform (
+			Database	db
+		) {
+			_result = null;
+			_error = null;
+			try {
+				_result = _write.run (db);
+			} catch (RuntimeException e) {
+				Log.e ("IAmHere", "Database write failed", e);
+				_error = e;
+			}
+		}
+
+		/*
+		 * Complete the future, failing it if the transaction was rolled
+		 * back, and post the callback.
+		 */
+		public void
+		finish (
+			boolean		committed,
+			Handler		handler
+		) {
+			if (!committed && _error == null)
+				_error = new SQLiteException ("The write was rolled back");
+
+			future.run ();
+
+			if (_callback != null) {
+				final T		result = (_error == null) ? _result : null;
+
+				handler.post (new Runnable () {
+					public void run () {
+						_callback.done (result);
+					}
+				});
+			}
+		}
+
+		/*
+		 * Return the result to the future.
+		 */
+		public T
+		call () {
+			if (_error != null)
+				throw _error;
+
+			return _result;
+		}
+	}
+
+	/*
+	 * Return the writer, starting its thread if necessary.
+	 */
+	public static synchronized DatabaseWriter
+	getInstance (
+		Context		context
+	) {
+		if (_instance == null)
+			_instance = new DatabaseWriter (context.getApplicationContext ());
+
+		return _instance;
+	}
+
+	/*
+	 * Constructor.
+	 */
+	private DatabaseWriter (
+		Context		context
+	) {
+		_database = Database.getInstance (context);
+		_mainHandler = new Handler (Looper.getMainLooper ());
+		_thread = new Thread (this, "DatabaseWriter");
+		_thread.start ();
+	}
+
+	/*
+	 * Queue a write. Returns a future for its result.
+	 */
+	public <T> Future<T>
+	submit (
+		Write<T>		write
+	) {
+		return submit (write, null);
+	}
+
+	/*
+	 * Queue a write, and call the callback on the main thread once it
+	 * has been committed. Returns a future for its result.
+	 */
+	public <T> Future<T>
+	submit (
+		Write<T>		write,
+		Callback<T>		callback
+	) {
+		Request<T>		r = new Request<T> (write, callback, false);
+
+		_queue.add (r);
+
+		return r.future;
+	}
+
+	/*
+	 * Queue a write that must run outside a transaction. It runs on its
+	 * own, once the writes queued before it have been committed.
+	 * Returns a future for its result.
+	 */
+	public <T> Future<T>
+	submitAlone (
+		Write<T>		write
+	) {
+		Request<T>		r = new Request<T> (write, null, true);
+
+		_queue.add (r);
+
+		return r.future;
+	}
+
+	/*
+	 * Run a write and wait for it to be committed. Returns its result, or
+	 * null if it failed. Must not be called on the main thread.
+	 * Writes made by other writes are run straight away.
+	 */
+	public <T> T
+	execute (
+		Write<T>		write
+	) {
+		if (Thread.currentThread () == _thread)
+			return write.run (_database);
+
+		return await (submit (write));
+	}
+
+	/*
+	 * Wait for a write to finish. Returns its result, or null if it
+	 * failed.
+	 */
+	private static <T> T
+	await (
+		Future<T>		future
+	) {
+		try {
+			return future.get ();
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Return the free space in the database file to the file system, and
+	 * wait until it has been. Must not be called on the main thread, or
+	 * by a write.
+	 */
+	public void
+	compact () {
+		await (submitAlone (new Write<Boolean> () {
+			public Boolean run (Database db) {
+				db.compact ();
+				return Boolean.TRUE;
+			}
+		}));
+	}
+
+	/*
+	 * Flag messages as read.
+	 */
+	public void
+	flagAsRead (
+		final long			ids[],
+		Callback<Boolean>	callback
+	) {
+		submit (new Write<Boolean> () {
+			public Boolean run (Database db) {
+				return Boolean.valueOf (db.flagAsRead (ids));
+			}
+		}, callback);
+	}
+
+	/*
+	 * Delete messages.
+	 */
+	public void
+	deleteMessages (
+		final long			ids[],
+		Callback<Boolean>	callback
+	) {
+		submit (new Write<Boolean> () {
+			public Boolean run (Database db) {
+				return Boolean.valueOf (db.deleteMessages (ids));
+			}
+		}, callback);
+	}
+
+	/*
+	 * Flag the messages that match a filter as read.
+	 */
+	public void
+	flagAsRead (
+		final String		senderKey,
+		final String		query,
+		Callback<Boolean>	callback
+	) {
+		submit (new Write<Boolean> () {
+			public Boolean run (Database db) {
+				return Boolean.valueOf (db.flagAsRead (senderKey, query));
+			}
+		}, callback);
+	}
+
+	/*
+	 * Delete the messages that match a filter.
+	 */
+	public void
+	deleteMessages (
+		final String		senderKey,
+		final String		query,
+		Callback<Boolean>	callback
+	) {
+		submit (new Write<Boolean> () {
+			public Boolean run (Database db) {
+				return Boolean.valueOf (db.deleteMessages (senderKey, query));
+			}
+		}, callback);
+	}
+
+	/*
+	 * Save a self-sent message. The callback gets its id, or -1.
+	 */
+	public void
+	addSelfSentRecord (
+		final String		msg,
+		Callback<Long>		callback
+	) {
+		submit (new Write<Long> () {
+			public Long run (Database db) {
+				return Long.valueOf (db.addSelfSentRecord (msg));
+			}
+		}, callback);
+	}
+
+	/*
+	 * Take the waiting writes, a group at a time, and commit each group
+	 * in one transaction.
+	 */
+	public void
+	run () {
+		ArrayList<Request<?>>	group = new ArrayList<Request<?>> (MAX_GROUP);
+
+		for (;;) {
+			Request<?>		r;
+
+			try {
+				r = _queue.take ();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (r.alone) {
+				performAlone (r);
+				continue;
+			}
+
+				// The group stops at a write that has to run on its own.
+				// This is the only thread taking from the queue, so the
+				// write peeked at is the one polled.
+			group.add (r);
+			while (group.size () < MAX_GROUP && (r = _queue.peek ()) != null
+																&& !r.alone)
+				group.add (_queue.poll ());
+
+			commit (group);
+			group.clear ();
+		}
+	}
+
+	/*
+	 * Run a write outside any transaction, then complete it.
+	 */
+	private void
+	performAlone (
+		Request<?>		r
+	) {
+		int			errors = Database.getErrorCount ();
+
+		r.perform (_database);
+		r.finish (Database.getErrorCount () == errors, _mainHandler);
+	}
+
+	/*
+	 * Run a group of writes in one transaction, then complete them. If
+	 * the group is rolled back, each write is run again on its own, so
+	 * one bad write doesn't lose the others.
+	 */
+	private void
+	commit (
+		ArrayList<Request<?>>	group
+	) {
+		ArrayList<Request<?>>	single = new ArrayList<Request<?>> (1);
+		int						i;
+
+		if (transact (group)) {
+			for (i = 0; i < group.size (); i++)
+				group.get (i).finish (true, _mainHandler);
+			return;
+		}
+
+		for (i = 0; i < group.size (); i++) {
+			Request<?>		r = group.get (i);
+
+			single.add (r);
+			r.finish (group.size () > 1 && transact (single), _mainHandler);
+			single.clear ();
+		}
+	}
+
+	/*
+	 * Run writes in one transaction. Returns true if it was committed.
+	 */
+	private boolean
+	transact (
+		ArrayList<Request<?>>	writes
+	) {
+		int			errors = Database.getErrorCount ();
+		boolean		committed = true;
+		int			i;
+
+		_database.beginTransaction ();
+		try {
+			for (i = 0; i < writes.size (); i++)
+				writes.get (i).perform (_database);
+
+			_database.setTransactionSuccessful ();
+		} finally {
+			try {
+				_database.endTransaction ();
+			} catch (RuntimeException e) {
+				Log.e ("IAmHere", "Database commit failed", e);
+				committed = false;
+			}
+		}
+
+			// A write that failed part way through ends its part of the
+			// transaction unsuccessfully, which rolls back the whole lot.
+		if (Database.getErrorCount () != errors)
+			committed = false;
+
+			// Messages the filter thinks were saved may have been rolled
+			// back, so they mustn't be dropped as duplicates.
+		if (!committed)
+			DuplicateFilter.getInstance ().clear ();
+
+		return committed;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * A message split into its locations and the pieces of text around them.
+ *
+ * Part i is the text before location i, or null if there wasn't any.
+ * If there is text after the last location, it is the final part.
+ * Messages are decoded once, when they are received, and the result is
+ * stored by Database so they don't need parsing again.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import android.location.Location;
+
+public class DecodedMessage {
+	private String			_parts[];
+	private Location		_locations[];
+
+	/*
+	 * Constructor.
+	 */
+	public DecodedMessage (
+		String		parts[],
+		Location	locations[]
+	) {
+		_parts = parts;
+		_locations = locations;
+	}
+
+	/*
+	 * Split a message into its locations and text.
+	 */
+	public static DecodedMessage
+	decode (
+		String		msg
+	) {
+		LocationRecognizer	recognizer = new LocationRecognizer ();
+		int					numLocations = recognizer.scan (msg);
+		int					numParts = 0;
+		int					numConverted = 0;
+		String				parts[] = new String[numLocations + 1];
+		Location			locations[] = new Location[numLocations];
+		int					pos = 0;
+		int					i;
+
+		for (i = 0; i < numLocations; i++) {
+			Location	loc = recognizer.getLocation (i).toLocation ();
+
+				// A match that can't be converted is left in the text.
+			if (loc == null)
+				continue;
+
+				// The message text before each location.
+			parts[numParts++] = stripWhitespace (msg.substring (pos,
+												recognizer.getStart (i)));
+			locations[numConverted++] = loc;
+			pos = recognizer.getEnd (i);
+		}
+
+		if (numConverted < locations.length) {
+			Location	a[] = new Location[numConverted];
+
+			System.arraycopy (locations, 0, a, 0, numConverted);
+			locations = a;
+		}
+
+		String		s = stripWhitespace (msg.substring (pos));
+
+		if (s != null)
+			parts[numParts++] = s;
+
+		if (numParts < parts.length) {
+			String		a[] = new String[numParts];
+
+			System.arraycopy (parts, 0, a, 0, numParts);
+			parts = a;
+		}
+
+		return new DecodedMessage (parts, locations);
+	}
+
+	/*
+	 * Return the number of text parts.
+	 */
+	public int
+	getPartCount () {
+		return _parts.length;
+	}
+
+	/*
+	 * Return the text parts. Some of them may be null.
+	 */
+	public String[]
+	getParts () {
+		return _parts;
+	}
+
+	/*
+	 * Return the number of locations.
+	 */
+	public int
+	getLocationCount () {
+		return _locations.length;
+	}
+
+	/*
+	 * Return the locations.
+	 */
+	public Location[]
+	getLocations () {
+		return _locations;
+	}
+
+	/*
+	 * Strip spaces from the start and end of the string.
+	 * Returns null if there is nothing left.
+	 */
+	private static String
+	stripWhitespace (
+		String		s
+	) {
+		int			leadingWhitespace = 0;
+		int			trailingWhitespace = 0;
+		int			i, n = s.length ();
+
+		for (i = 0; i < n; i++) {
+			if (s.charAt (i) == ' ')
+				leadingWhitespace++;
+			else
+				break;
+		}
+
+		if (leadingWhitespace == n)
+			return null;
+
+		for (i = 0; i < n; i++) {
+			if (s.charAt (n - i - 1) == ' ')
+				trailingWhitespace++;
+			else
+				break;
+		}
+
+		if (leadingWhitespace + trailingWhitespace == 0)
+			return s;
+		else
+			return s.substring (leadingWhitespace, n - trailingWhitespace);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * This class spots messages that have already been saved, such as
+ * carrier retransmissions or repeated sends from the same app.
+ *
+ * A message is identified by its sender key and a 64-bit FNV-1a hash of
+ * its body. The identities of recently saved messages are kept in a
+ * small LRU map, so most duplicates are caught without touching the
+ * database. A unique index in the database catches the rest.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DuplicateFilter {
+	private LinkedHashMap<Long, Long>	_recent;
+
+	private static DuplicateFilter		_instance = null;
+
+		// Identical messages closer together than this are duplicates.
+	public static final long	WINDOW = 10 * 60 * 1000;	// Milliseconds.
+
+	private static final int	MAX_ENTRIES = 256;
+	private static final long	FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long	FNV_PRIME = 0x100000001b3L;
+
+	/*
+	 * Return the filter, creating it if necessary.
+	 */
+	public static synchronized DuplicateFilter
+	getInstance () {
+		if (_instance == null)
+			_instance = new DuplicateFilter ();
+
+		return _instance;
+	}
+
+	/*
+	 * Constructor.
+	 */
+	private DuplicateFilter () {
+		_recent = new LinkedHashMap<Long, Long> (MAX_ENTRIES, 0.75f, false) {
+			protected boolean
+			removeEldestEntry (
+				Map.Entry<Long, Long>	eldest
+			) {
+				return (size () > MAX_ENTRIES);
+			}
+		};
+	}
+
+	/*
+	 * Has the same message from the same sender been saved within
+	 * the window?
+	 */
+	public synchronized boolean
+	isDuplicate (
+		String		senderKey,
+		long		bodyHash,
+		long		now
+	) {
+		Long		id = Long.valueOf (identity (senderKey, bodyHash));
+		Long		time = _recent.get (id);
+
+		return (time != null && now - time.longValue () < WINDOW);
+	}
+
+	/*
+	 * Remember that a message has been saved.
+	 */
+	public synchronized void
+	add (
+		String		senderKey,
+		long		bodyHash,
+		long		now
+	) {
+		Long		id = Long.valueOf (identity (senderKey, bodyHash));
+
+		_recent.remove (id);		// So it moves to the newest position.
+		_recent.put (id, Long.valueOf (now));
+	}
+
+	/*
+	 * Forget all the messages, after saving them has failed.
+	 */
+	public synchronized void
+	clear () {
+		_recent.clear ();
+	}
+
+	/*
+	 * Return the 64-bit FNV-1a hash of a message body.
+	 */
+	public static long
+	bodyHash (
+		String		body
+	) {
+		return hash (FNV_OFFSET_BASIS, body);
+	}
+
+	/*
+	 * Return the window number a time falls in, for the unique index.
+	 */
+	public static long
+	bucket (
+		long		time
+	) {
+		return time / WINDOW;
+	}
+
+	/*
+	 * Combine a sender key and body hash into one identity.
+	 */
+	private static long
+	identity (
+		String		senderKey,
+		long		bodyHash
+	) {
+		return hash (bodyHash, senderKey);
+	}
+
+	/*
+	 * Continue an FNV-1a hash over the characters of a string, one
+	 * byte at a time.
+	 */
+	private static long
+	hash (
+		long		h,
+		String		s
+	) {
+		int			n = (s == null) ? 0 : s.length ();
+		int			i;
+
+		for (i = 0; i < n; i++) {
+			char		c = s.charAt (i);
+
+			h = (h ^ (c & 0xff)) * FNV_PRIME;
+			h = (h ^ (c >>> 8)) * FNV_PRIME;
+		}
+
+		return h;
+	}
+}
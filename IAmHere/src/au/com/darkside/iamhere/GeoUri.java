@@ -14,6 +14,39 @@ package au.com.darkside.iamhere;
 import android.location.Location;
 
 public class GeoUri {
+		// The longest URI the encoder can produce from a Location.
+	public static final int		MAX_LENGTH = 111;
+
+	private static final int	STATE_NUMBER_START = 0;
+	private static final int	STATE_NUMBER_SIGN = 1;
+	private static final int	STATE_INTEGER = 2;
+	private static final int	STATE_FRACTION_START = 3;
+	private static final int	STATE_FRACTION = 4;
+	private static final int	STATE_PARAMETER_START = 5;
+	private static final int	STATE_PARAMETER_NAME = 6;
+	private static final int	STATE_CRS_START = 7;
+	private static final int	STATE_CRS = 8;
+	private static final int	STATE_VALUE_START = 9;
+	private static final int	STATE_VALUE = 10;
+	private static final int	STATE_PERCENT_1 = 11;
+	private static final int	STATE_PERCENT_2 = 12;
+
+	private static final int	MAX_DIGITS = 18;
+	private static final int	TYPICAL_LENGTH = 48;
+	private static final double	METRES_PER_DEGREE = 40075017.0 / 360.0;
+	private static final long	LONG_POWERS_OF_TEN[] = new long[] {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+		100000000L, 1000000000L, 10000000000L, 100000000000L,
+		1000000000000L, 10000000000000L, 100000000000000L,
+		1000000000000000L, 10000000000000000L, 100000000000000000L,
+		1000000000000000000L
+	};
+
+	private static final double	POWERS_OF_TEN[] = new double[] {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+		1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+	};
+
 	/*
 	 * Return the location encoded as an RFC 5870 URI.
 	 */
@@ -21,136 +54,694 @@ public class GeoUri {
 	locationToString (
 		final Location	loc
 	) {
-		String			s = "geo:";
+		return locationToString (loc, false);
+	}
 
-		s += doubleToString (loc.getLatitude (), 6) + ","
-						+ doubleToString (loc.getLongitude (), 6);
-		
-		if (loc.hasAltitude ())
-			s += "," + doubleToString (loc.getAltitude (), 3);
-		
-		if (loc.hasAccuracy ())
-			s += ";u=" + doubleToString (loc.getAccuracy (), 3);
+	/*
+	 * Return the location encoded as an RFC 5870 URI.
+	 * If limitPrecision is set, the number of digits is derived from the
+	 * location's accuracy, so the URI doesn't claim more precision than
+	 * the fix has.
+	 */
+	public static String
+	locationToString (
+		final Location	loc,
+		boolean			limitPrecision
+	) {
+		StringBuilder	sb = new StringBuilder (TYPICAL_LENGTH);
 
-		return s;
+		return appendLocation (sb, loc, limitPrecision).toString ();
 	}
 
 	/*
-	 * Return a real number as a string, with a maximum number of
-	 * decimal places.
+	 * Append the location, encoded as an RFC 5870 URI, to a string builder.
+	 * Returns the string builder.
 	 */
-	private static String
-	doubleToString (
-		double		d,
-		int			decimalPlaces
+	public static StringBuilder
+	appendLocation (
+		final StringBuilder	sb,
+		final Location		loc
 	) {
-		String		ret;
+		return appendLocation (sb, loc, false);
+	}
 
-		if (d < 0.0) {
-			d = -d;
-			ret = "-";
-		} else
-			ret = "";
+	/*
+	 * Append the location, encoded as an RFC 5870 URI, to a string builder,
+	 * optionally limiting the precision to the location's accuracy.
+	 * Returns the string builder.
+	 */
+	public static StringBuilder
+	appendLocation (
+		final StringBuilder	sb,
+		final Location		loc,
+		boolean				limitPrecision
+	) {
+		int				coordinatePlaces = 6;
+		int				altitudePlaces = 3;
+		int				accuracyPlaces = 3;
 
-		String		s = String.valueOf ((int) Math.round (d * Math.pow (10,
-															decimalPlaces)));
+		if (limitPrecision && loc.hasAccuracy () && loc.getAccuracy () > 0) {
+			double			acc = loc.getAccuracy ();
 
-		if (s == "0")
-			return s;
+			coordinatePlaces = clampPlaces (Math.ceil (Math.log10 (
+											METRES_PER_DEGREE / acc)), 6);
+			altitudePlaces = clampPlaces (Math.ceil (-Math.log10 (acc)), 3);
+			accuracyPlaces = clampPlaces (1 - Math.floor (Math.log10 (acc)), 3);
+		}
 
-		while (s.length () < decimalPlaces + 1)
-			s = "0" + s;
+		sb.append ("geo:");
+		appendFixed (sb, loc.getLatitude (), coordinatePlaces);
+		sb.append (',');
+		appendFixed (sb, loc.getLongitude (), coordinatePlaces);
 
-		ret += s.substring (0, s.length() - decimalPlaces);	// Integer component.
-		s = s.substring (s.length () - decimalPlaces);	// Fractional component.
+		if (loc.hasAltitude ()) {
+			sb.append (',');
+			appendFixed (sb, loc.getAltitude (), altitudePlaces);
+		}
 
-		while (s.length () > 0 && s.charAt (s.length () - 1) == '0')
-			s = s.substring(0, s.length () - 1);	// Strip trailing zeroes.
+		if (loc.hasAccuracy ()) {
+			sb.append (";u=");
+			appendFixed (sb, loc.getAccuracy (), accuracyPlaces);
+		}
 
-		if (s.length () > 0)
-			ret += "." + s;		// Append decimal places, if any.
+		return sb;
+	}
 
-		return ret;
+	/*
+	 * Append a parsed location to a string builder as an RFC 5870 URI.
+	 * Text that came from a parsed URI is copied unchanged, so apart from
+	 * the scheme name being lower case, the URI is reproduced exactly.
+	 * Returns the string builder.
+	 */
+	public static StringBuilder
+	appendLocation (
+		final StringBuilder		sb,
+		final ParsedLocation	pl
+	) {
+		int				i;
+
+		sb.append ("geo:");
+		appendNumber (sb, pl, ParsedLocation.LATITUDE, pl.getLatitude (), 6);
+		sb.append (',');
+		appendNumber (sb, pl, ParsedLocation.LONGITUDE, pl.getLongitude (), 6);
+
+		if (pl.hasAltitude ()) {
+			sb.append (',');
+			appendNumber (sb, pl, ParsedLocation.ALTITUDE,
+												pl.getAltitude (), 3);
+		}
+
+		if (pl.hasCrs ()) {
+			sb.append (";crs=");
+			pl.appendCrsText (sb);
+		}
+
+		if (pl.hasAccuracy ()) {
+			sb.append (";u=");
+			appendNumber (sb, pl, ParsedLocation.ACCURACY,
+												pl.getAccuracy (), 3);
+		}
+
+		for (i = 0; i < pl.getParameterCount (); i++) {
+			sb.append (';');
+			pl.appendParameterText (sb, i);
+		}
+
+		return sb;
+	}
+
+	/*
+	 * Write the location, encoded as an RFC 5870 URI, into a character
+	 * buffer starting at the specified offset. The buffer must have room
+	 * for MAX_LENGTH characters.
+	 * Returns the offset just past the last character written.
+	 */
+	public static int
+	appendLocation (
+		final char		buf[],
+		int				offset,
+		final Location	loc
+	) {
+		buf[offset++] = 'g';
+		buf[offset++] = 'e';
+		buf[offset++] = 'o';
+		buf[offset++] = ':';
+		offset = putFixed (buf, offset, loc.getLatitude (), 6);
+		buf[offset++] = ',';
+		offset = putFixed (buf, offset, loc.getLongitude (), 6);
+
+		if (loc.hasAltitude ()) {
+			buf[offset++] = ',';
+			offset = putFixed (buf, offset, loc.getAltitude (), 3);
+		}
+
+		if (loc.hasAccuracy ()) {
+			buf[offset++] = ';';
+			buf[offset++] = 'u';
+			buf[offset++] = '=';
+			offset = putFixed (buf, offset, loc.getAccuracy (), 3);
+		}
+
+		return offset;
+	}
+
+	/*
+	 * Append an array of locations as URIs to a string builder, with a
+	 * separator character between each one. Null entries are skipped.
+	 * Returns the string builder.
+	 */
+	public static StringBuilder
+	appendLocations (
+		final StringBuilder	sb,
+		final Location		locs[],
+		final char			separator
+	) {
+		boolean			first = true;
+		int				i;
+
+		for (i = 0; i < locs.length; i++) {
+			if (locs[i] == null)
+				continue;
+
+			if (!first)
+				sb.append (separator);
+
+			appendLocation (sb, locs[i]);
+			first = false;
+		}
+
+		return sb;
+	}
+
+	/*
+	 * Write an array of locations as URIs into a character buffer, with a
+	 * separator character between each one. Null entries are skipped.
+	 * The buffer must have room for (MAX_LENGTH + 1) characters per location.
+	 * Returns the offset just past the last character written.
+	 */
+	public static int
+	appendLocations (
+		final char			buf[],
+		int					offset,
+		final Location		locs[],
+		final char			separator
+	) {
+		int				start = offset;
+		int				i;
+
+		for (i = 0; i < locs.length; i++) {
+			if (locs[i] == null)
+				continue;
+
+			if (offset > start)
+				buf[offset++] = separator;
+
+			offset = appendLocation (buf, offset, locs[i]);
+		}
+
+		return offset;
+	}
+
+	/*
+	 * Append one of the numbers of a parsed location, using its original
+	 * text if it has any.
+	 */
+	private static void
+	appendNumber (
+		final StringBuilder		sb,
+		final ParsedLocation	pl,
+		int						field,
+		double					d,
+		int						decimalPlaces
+	) {
+		if (pl.hasNumberText (field))
+			pl.appendNumberText (sb, field);
+		else
+			appendFixed (sb, d, decimalPlaces);
+	}
+
+	/*
+	 * Limit a number of decimal places to between zero and a maximum.
+	 */
+	private static int
+	clampPlaces (
+		double		places,
+		int			max
+	) {
+		if (places <= 0)
+			return 0;
+		else if (places >= max)
+			return max;
+		else
+			return (int) places;
+	}
+
+	/*
+	 * Return the number of decimal digits needed to write the value,
+	 * with a minimum of one.
+	 */
+	private static int
+	digitCount (
+		long		v
+	) {
+		int			n = 1;
+
+		while (n < LONG_POWERS_OF_TEN.length && v >= LONG_POWERS_OF_TEN[n])
+			n++;
+
+		return n;
+	}
+
+	/*
+	 * Append a real number to a string builder, with a maximum number of
+	 * decimal places and no trailing zeroes.
+	 */
+	private static void
+	appendFixed (
+		final StringBuilder	sb,
+		double				d,
+		int					decimalPlaces
+	) {
+		long		v = Math.round (Math.abs (d)
+										* POWERS_OF_TEN[decimalPlaces]);
+		int			places = decimalPlaces;
+		int			i;
+
+		if (v == 0) {
+			sb.append ('0');
+			return;
+		}
+
+		while (places > 0 && v % 10 == 0) {
+			v /= 10;		// Strip trailing zeroes.
+			places--;
+		}
+
+		if (d < 0.0)
+			sb.append ('-');
+
+		int			n = Math.max (digitCount (v), places + 1);
+
+		for (i = n - 1; i >= 0; i--) {
+			if (i == places - 1)
+				sb.append ('.');
+			sb.append ((char) ('0' + (v / LONG_POWERS_OF_TEN[i]) % 10));
+		}
+	}
+
+	/*
+	 * Write a real number into a character buffer, with a maximum number
+	 * of decimal places and no trailing zeroes.
+	 * Returns the offset just past the last character written.
+	 */
+	private static int
+	putFixed (
+		final char	buf[],
+		int			offset,
+		double		d,
+		int			decimalPlaces
+	) {
+		long		v = Math.round (Math.abs (d)
+										* POWERS_OF_TEN[decimalPlaces]);
+		int			places = decimalPlaces;
+		int			i;
+
+		if (v == 0) {
+			buf[offset++] = '0';
+			return offset;
+		}
+
+		while (places > 0 && v % 10 == 0) {
+			v /= 10;		// Strip trailing zeroes.
+			places--;
+		}
+
+		if (d < 0.0)
+			buf[offset++] = '-';
+
+		int			n = Math.max (digitCount (v), places + 1);
+
+		for (i = n - 1; i >= 0; i--) {
+			if (i == places - 1)
+				buf[offset++] = '.';
+			buf[offset++] = (char) ('0' + (v / LONG_POWERS_OF_TEN[i]) % 10);
+		}
+
+		return offset;
 	}
 
 	/*
 	 * Parse an RFC 5870 URI string representation of a location.
-	 * geo:lat,lon[,alt][;u=accuracy]
+	 * geo:lat,lon[,alt][;crs=label][;u=accuracy][;name[=value]]...
 	 */
 	public static Location
 	stringToLocation (
 		String		sloc
 	) {
-		String		s = sloc.toLowerCase ();
-
-		if (!s.startsWith ("geo:") || s.length () < 5)
-			return null;
-
-		String		sa[] = s.substring (4).split (";");
-		Location	loc = parseLatLongAlt (sa[0]);
-		int			i;
+		ParsedLocation	pl = new ParsedLocation ();
 
-		if (loc == null)
+		if (!parse (sloc, 0, sloc.length (), pl))
 			return null;
 
-		for (i = 1; i < sa.length; i++)
-			addLocationAttribute (loc, sa[i]);
+		return pl.toLocation ();
+	}
 
-		return loc;
+	/*
+	 * Parse the characters between start and end as a geo URI, storing
+	 * the components in the result. Returns false if the text isn't
+	 * exactly one valid URI.
+	 */
+	public static boolean
+	parse (
+		final CharSequence		s,
+		final int				start,
+		final int				end,
+		final ParsedLocation	result
+	) {
+		return (scan (s, start, end, result) == end);
 	}
 
 	/*
-	 * Parse a comma-separated latitude, longitude, and optional altitude.
-	 * Return the result in a Location.
+	 * Scan the longest valid geo URI that begins at the start position,
+	 * without going past the end position, and store its components in
+	 * the result. Returns the position just past the URI, or -1 if there
+	 * isn't a valid URI at the start position.
+	 *
+	 * This is a single-pass state machine following the RFC 5870 grammar.
+	 * Each character is examined once, and nothing is allocated unless a
+	 * URI has more parameters than the result has room for.
 	 */
-	private static Location
-	parseLatLongAlt (
-		String		s
+	public static int
+	scan (
+		final CharSequence		s,
+		final int				start,
+		final int				end,
+		final ParsedLocation	result
 	) {
-		String		sa[] = s.split (",");
+		result.clear (s);
 
-		if (sa.length < 2 || sa.length > 3)
-			return null;
+		if (end - start < 4 || !schemeMatches (s, start))
+			return -1;
 
-		try {
-			Location	loc = new Location ("GeoUri");
+		int			state = STATE_NUMBER_START;
+		int			field = ParsedLocation.LATITUDE;
+		boolean		negative = false;
+		long		mantissa = 0;
+		int			digits = 0;
+		int			decimalPlaces = 0;
+		int			excessDigits = 0;
+		int			tokenStart = start + 4;
+		int			tokenAccept = -1;	// Where the URI could end before the token.
+		int			lastAccept = -1;	// Where the URI could end so far.
+		int			nameEnd = -1;
+		boolean		sawCrs = false;
+		boolean		sawAccuracy = false;
+		boolean		sawParameter = false;
+		int			i;
 
-			loc.setLatitude (Double.valueOf (sa[0]));
-			loc.setLongitude (Double.valueOf (sa[1]));
+		for (i = start + 4; i < end; i++) {
+			char		c = s.charAt (i);
+			boolean		halt = false;
 
-			if (sa.length == 3)
-				loc.setAltitude (Double.valueOf (sa[2]));
+			switch (state) {
+				case STATE_NUMBER_START:
+				case STATE_NUMBER_SIGN:
+				case STATE_INTEGER:
+				case STATE_FRACTION_START:
+				case STATE_FRACTION:
+					if (c >= '0' && c <= '9') {
+						if (state == STATE_FRACTION_START)
+							state = STATE_FRACTION;
+						else if (state != STATE_FRACTION)
+							state = STATE_INTEGER;
 
-			return loc;
-		} catch (Exception e) {
-			return null;
+						if (digits < MAX_DIGITS) {
+							mantissa = mantissa * 10 + (c - '0');
+							digits++;
+							if (state == STATE_FRACTION)
+								decimalPlaces++;
+						} else if (state == STATE_INTEGER)
+							excessDigits++;
+					} else if (state == STATE_NUMBER_START) {
+						if (c == '-' && field != ParsedLocation.ACCURACY) {
+							negative = true;
+							state = STATE_NUMBER_SIGN;
+						} else
+							halt = true;
+					} else if (c == '.' && state == STATE_INTEGER) {
+						state = STATE_FRACTION_START;
+					} else if (state != STATE_INTEGER
+												&& state != STATE_FRACTION) {
+						halt = true;
+					} else if (c == ',' && field < ParsedLocation.ALTITUDE) {
+						result.setNumber (field, toDouble (negative, mantissa,
+									decimalPlaces, excessDigits), tokenStart, i);
+						field++;
+						state = STATE_NUMBER_START;
+					} else if (c == ';' && field != ParsedLocation.LATITUDE) {
+						result.setNumber (field, toDouble (negative, mantissa,
+									decimalPlaces, excessDigits), tokenStart, i);
+						state = STATE_PARAMETER_START;
+					} else
+						halt = true;
+
+					if (state == STATE_NUMBER_START
+										|| state == STATE_PARAMETER_START) {
+						negative = false;
+						mantissa = 0;
+						digits = 0;
+						decimalPlaces = 0;
+						excessDigits = 0;
+						tokenAccept = lastAccept;
+						tokenStart = i + 1;
+					}
+					break;
+				case STATE_PARAMETER_START:
+				case STATE_PARAMETER_NAME:
+					if (isLabelChar (c)) {
+						state = STATE_PARAMETER_NAME;
+						break;
+					} else if (state == STATE_PARAMETER_START
+												|| (c != '=' && c != ';')) {
+						halt = true;
+						break;
+					}
+
+					nameEnd = i;
+
+					if (ParsedLocation.regionEqualsIgnoreCase (s, tokenStart,
+															nameEnd, "crs")) {
+							// Must come first, and must have a value.
+						if (c != '=' || sawCrs || sawAccuracy || sawParameter)
+							return finish (result, tokenAccept);
+
+						sawCrs = true;
+						state = STATE_CRS_START;
+						lastAccept = tokenAccept;
+						tokenStart = i + 1;
+					} else if (ParsedLocation.regionEqualsIgnoreCase (s,
+												tokenStart, nameEnd, "u")) {
+							// Must come before other parameters, with a value.
+						if (c != '=' || sawAccuracy || sawParameter)
+							return finish (result, tokenAccept);
+
+						sawAccuracy = true;
+						field = ParsedLocation.ACCURACY;
+						state = STATE_NUMBER_START;
+						lastAccept = tokenAccept;
+						tokenStart = i + 1;
+					} else if (c == '=') {
+						sawParameter = true;
+						state = STATE_VALUE_START;
+					} else {
+						sawParameter = true;
+						result.addParameter (tokenStart, nameEnd, nameEnd);
+						state = STATE_PARAMETER_START;
+						tokenAccept = lastAccept;
+						tokenStart = i + 1;
+					}
+					break;
+				case STATE_CRS_START:
+				case STATE_CRS:
+					if (isLabelChar (c)) {
+						state = STATE_CRS;
+					} else if (c == ';' && state == STATE_CRS) {
+						result.setCrs (tokenStart, i);
+						state = STATE_PARAMETER_START;
+						tokenAccept = lastAccept;
+						tokenStart = i + 1;
+					} else
+						halt = true;
+					break;
+				case STATE_VALUE_START:
+				case STATE_VALUE:
+					if (isValueChar (c)) {
+						state = STATE_VALUE;
+					} else if (c == '%') {
+						state = STATE_PERCENT_1;
+					} else if (c == ';' && state == STATE_VALUE) {
+						result.addParameter (tokenStart, nameEnd, i);
+						state = STATE_PARAMETER_START;
+						tokenAccept = lastAccept;
+						tokenStart = i + 1;
+					} else
+						halt = true;
+					break;
+				case STATE_PERCENT_1:
+				case STATE_PERCENT_2:
+					if (c < 0x80 && Character.digit (c, 16) >= 0)
+						state = (state == STATE_PERCENT_1) ? STATE_PERCENT_2
+																: STATE_VALUE;
+					else
+						halt = true;
+					break;
+			}
+
+			if (halt)
+				break;
+
+			if (state == STATE_INTEGER || state == STATE_FRACTION) {
+				if (field != ParsedLocation.LATITUDE)
+					lastAccept = i + 1;
+			} else if (state == STATE_PARAMETER_NAME || state == STATE_CRS
+												|| state == STATE_VALUE)
+				lastAccept = i + 1;
 		}
+
+			// Complete the token in progress, as far as the last position
+			// where the URI could have ended.
+		if (lastAccept > tokenStart) {
+			switch (state) {
+				case STATE_INTEGER:
+				case STATE_FRACTION_START:
+				case STATE_FRACTION:
+					result.setNumber (field, toDouble (negative, mantissa,
+							decimalPlaces, excessDigits), tokenStart, lastAccept);
+					break;
+				case STATE_PARAMETER_NAME:
+					if (ParsedLocation.regionEqualsIgnoreCase (s, tokenStart,
+															lastAccept, "crs")
+							|| ParsedLocation.regionEqualsIgnoreCase (s,
+												tokenStart, lastAccept, "u"))
+						return finish (result, tokenAccept);
+
+					result.addParameter (tokenStart, lastAccept, lastAccept);
+					break;
+				case STATE_CRS:
+					result.setCrs (tokenStart, lastAccept);
+					break;
+				case STATE_VALUE_START:
+				case STATE_VALUE:
+				case STATE_PERCENT_1:
+				case STATE_PERCENT_2:
+					result.addParameter (tokenStart, nameEnd,
+							(lastAccept > nameEnd) ? lastAccept : nameEnd);
+					break;
+			}
+		}
+
+		return finish (result, lastAccept);
 	}
 
 	/*
-	 * Parse an location attribute and add it to the location.
+	 * Scan a location in any of the supported text formats, either a geo
+	 * URI or a compact code, beginning at the start position.
+	 * Returns the position just past it, or -1 if there isn't one.
 	 */
-	private static boolean
-	addLocationAttribute (
-		Location	loc,
-		String		attr
+	public static int
+	scanLocation (
+		final CharSequence		s,
+		final int				start,
+		final int				end,
+		final ParsedLocation	result
 	) {
-		int			pos = attr.indexOf ('=');
+		int			pos = scan (s, start, end, result);
 
 		if (pos < 0)
-			return false;
+			pos = CompactLocation.scan (s, start, end, result);
 
-		String		s = attr.substring (0, pos);
+		return pos;
+	}
+
+	/*
+	 * Validate a scanned URI ending at the specified position, and return
+	 * the position, or -1 if the URI is invalid.
+	 */
+	private static int
+	finish (
+		final ParsedLocation	result,
+		final int				end
+	) {
+		if (end < 0) {
+			result.clear ();
+			return -1;
+		}
+
+		if (result.isWgs84 ()) {
+			double		lat = result.getLatitude ();
+			double		lon = result.getLongitude ();
 
-		if (s.equals ("u")) {
-			try {
-				loc.setAccuracy (Float.valueOf (attr.substring (pos + 1)));
-				return true;
-			} catch (Exception e) {
-				return false;
+			if (lat < -90.0 || lat > 90.0 || lon < -180.0 || lon > 180.0) {
+				result.clear ();
+				return -1;
 			}
 		}
 
-		return false;
+		return end;
+	}
+	/*
+	 * Does the text at the specified position start with "geo:",
+	 * ignoring case?
+	 */
+	private static boolean
+	schemeMatches (
+		final CharSequence	s,
+		final int			pos
+	) {
+		return (Character.toLowerCase (s.charAt (pos)) == 'g'
+					&& Character.toLowerCase (s.charAt (pos + 1)) == 'e'
+					&& Character.toLowerCase (s.charAt (pos + 2)) == 'o'
+					&& s.charAt (pos + 3) == ':');
+	}
+
+	/*
+	 * Return the value of a number scanned as a fixed-point mantissa.
+	 */
+	private static double
+	toDouble (
+		boolean		negative,
+		long		mantissa,
+		int			decimalPlaces,
+		int			excessDigits
+	) {
+		double		d = mantissa / POWERS_OF_TEN[decimalPlaces];
+
+		if (excessDigits > 0)
+			d *= Math.pow (10, excessDigits);
+
+		return negative ? -d : d;
+	}
+
+	/*
+	 * Can the character appear in a label (a parameter name or crs)?
+	 */
+	private static boolean
+	isLabelChar (
+		char		c
+	) {
+		return ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+								|| (c >= '0' && c <= '9') || c == '-');
+	}
+
+	/*
+	 * Can the character appear unencoded in a parameter value?
+	 */
+	private static boolean
+	isValueChar (
+		char		c
+	) {
+		return (isLabelChar (c) || c == '.' || c == '_' || c == '~'
+					|| c == '[' || c == ']' || c == ':' || c == '&'
+					|| c == '+' || c == '$');
 	}
 }
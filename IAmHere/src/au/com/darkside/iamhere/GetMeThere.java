@@ -92,30 +92,27 @@ public class GetMeThere extends MapActivity implements LocationListener {
 
         Intent		intent = getIntent ();
         long		id = -1;
-        String		msg = null;
 
         if (intent != null)
         	id = intent.getLongExtra (IAmHere.RECEIVED_SMS_ID, -1);
 
         if (id >= 0) {
-        	Database	db = new Database (this);
-
-        	if (db.open ()) {
-        		String		details[] = new String[2];
-
-        		if (db.getDetails (id, details)) {
-        			_phone = Utility.getContactNameFromNumber (this, details[0]);
-        			msg = details[1];
-        			db.flagAsRead (id);
-        		}
-
-        		db.close ();
+        	Database	db = Database.getInstance (this);
+        	String		details[] = new String[2];
+
+        		// The locations were decoded when the message arrived.
+        	if (db.getDetails (id, details)) {
+        		DecodedMessage	message = db.getDecodedMessage (id);
+
+        		_phone = Utility.getContactNameFromNumber (this, details[0]);
+        		if (message != null)
+        			setMessage (message);
+        		DatabaseWriter.getInstance (this).flagAsRead (new long[] {id},
+        																null);
+        		NotificationAggregator.getInstance (this).clear ();
         	}
         }
 
-        if (msg != null)
-        	parseMessage (msg);
-
         	// Create the compass view.
         _compassView = new CompassView (this, _locations, DEFAULT_COLOURS);
         _compassView.setLayoutParams (new LayoutParams (LayoutParams.FILL_PARENT,
@@ -381,111 +378,17 @@ public class GetMeThere extends MapActivity implements LocationListener {
     }
 
     /*
-     * Strip whitespace from the start and end of the string.
-     */
-    static private String
-    stripWhitespace (
-    	String		s
-    ) {
-    	int			leadingWhitespace = 0;
-    	int			trailingWhitespace = 0;
-    	int			i, n = s.length ();
-
-    	for (i = 0; i < n; i++) {
-    		if (s.charAt (i) == ' ')
-    			leadingWhitespace++;
-    		else
-    			break;
-    	}
-
-    	if (leadingWhitespace == n)
-    		return null;
-
-    	for (i = 0; i < n; i++) {
-    		if (s.charAt (n - i - 1) == ' ')
-    			trailingWhitespace++;
-    		else
-    			break;
-    	}
-
-    	if (leadingWhitespace + trailingWhitespace == 0)
-    		return s;
-    	else
-    		return s.substring (leadingWhitespace, n - trailingWhitespace);
-    }
-
-    /*
-     * Parse the SMS message, extracting all GEO URIs and message components.
+     * Show the locations and text components of a decoded message.
      */
     private void
-    parseMessage (
-    	String		msg
+    setMessage (
+    	DecodedMessage	message
     ) {
-    	int			numMessages = 0;
-    	int			numLocations = 0;
-    	String		messagePart = null;
-    	String		messages[] = new String[160];
-    	Location	locations[] = new Location[160];
-
-    	while (msg.length () > 0) {
-    		int			pos = msg.indexOf ("geo:");
-    		String		s;
-
-    		if (pos < 0) {		// No geo URI, so it's all message text.
-    			s = stripWhitespace (msg);
-    			if (s != null) {
-    				if (messagePart == null)
-    					messagePart = s;
-    				else
-    					messagePart += " " + s;
-    			}
-    			break;
-    		} else {
-    				// Message text before the URI
-    			s = stripWhitespace (msg.substring (0, pos));
-    			if (s != null) {
-    				if (messagePart == null)
-    					messagePart = s;
-    				else
-    					messagePart += " " + s;
-    			}
-
-    				// Extract the geo URI into its own string.
-    			msg = msg.substring (pos);
-    			pos = msg.indexOf (' ');
-
-    			if (pos < 0) {
-    				s = msg;
-    				msg = "";
-    			} else {
-    				s = msg.substring (0, pos);
-    				msg = msg.substring (pos + 1);
-    			}
-
-    			Location	loc = GeoUri.stringToLocation (s);
-
-    			if (loc != null) {
-    				messages[numMessages++] = messagePart;
-    				locations[numLocations++] = loc;
-    				messagePart = null;
-    			} else {	// Not a valid URI, must be part of the message.
-    				messagePart += " " + s;
-    			}
-    		}
-    	}
-
-    	if (messagePart != null)
-    		messages[numMessages++] = messagePart;
+    	if (message.getPartCount () > 0)
+    		_messageParts = message.getParts ();
 
-    	if (numMessages > 0) {
-    		_messageParts = new String[numMessages];
-    		System.arraycopy (messages, 0, _messageParts, 0, numMessages);
-    	}
-
-    	if (numLocations > 0) {
-    		_locations = new Location[numLocations];
-    		System.arraycopy (locations, 0, _locations, 0, numLocations);
-    	}
+    	if (message.getLocationCount () > 0)
+    		_locations = message.getLocations ();
     }
 
     /*
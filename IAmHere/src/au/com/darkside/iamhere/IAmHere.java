@@ -40,6 +40,8 @@ public class IAmHere extends Activity {
 	private CheckBox			_selfCheckBox;
 	private ProgressDialog		_progressDialog;
 	private CurrentLocation		_currentLocation;
+	private boolean				_compactLocations;
+	private LocationRecognizer	_recognizer = new LocationRecognizer ();
 
 	private static final int	ACTIVITY_LOCATION_SELECT = 1;
 	private static final int	DIALOG_MESSAGE_TOO_LONG = 1;
@@ -48,9 +50,15 @@ public class IAmHere extends Activity {
 	private static final int	DIALOG_EMPTY_MESSAGE = 4;
 	private static final int	DIALOG_DISPLAY_UNITS = 5;
 	private static final int	DIALOG_ABOUT = 6;
+	private static final int	DIALOG_LOCATION_FORMAT = 7;
+	private static final int	DIALOG_MESSAGE_LIMITS = 8;
+	private static final int	DIALOG_RETENTION = 9;
 	private static final int	MENU_VIEW_RECEIVED = 1;
 	private static final int	MENU_SETTINGS = 2;
 	private static final int	MENU_ABOUT = 3;
+	private static final int	MENU_LOCATION_FORMAT = 4;
+	private static final int	MENU_MESSAGE_LIMITS = 5;
+	private static final int	MENU_RETENTION = 6;
 
 	public static final String	LOCATION_DATA =
 									"au.com.darkside.iamhere.LocationData";
@@ -73,6 +81,9 @@ public class IAmHere extends Activity {
         _counterText = (TextView) findViewById (R.id.counter_text);
         _selfCheckBox = (CheckBox) findViewById (R.id.self_checkbox);
         _progressDialog = null;
+        _compactLocations = getSharedPreferences ("IAmHerePrefs",
+        				MODE_PRIVATE).getBoolean ("compact_locations", false);
+        RetentionService.schedule (this);
 
         _messageEditor = (EditText) findViewById (R.id.message_editor);
         _messageEditor.addTextChangedListener (
@@ -147,7 +158,7 @@ public class IAmHere extends Activity {
 
     	_sendButton.setEnabled (length <= 160);
 
-    	if (s.contains ("geo:"))
+    	if (_recognizer.contains (s))
     		_sendButton.setText ("Send");
     	else
     		_sendButton.setText ("Send with current location");
@@ -212,6 +223,41 @@ public class IAmHere extends Activity {
     					dialog.dismiss ();
     				}
     			});
+    	} else if (id == DIALOG_LOCATION_FORMAT) {
+    		final CharSequence	items[] = {"Geo URI (standard)", "Compact code"};
+    		int					index = _compactLocations ? 1 : 0;
+
+    		builder.setTitle ("Location format")
+    			.setSingleChoiceItems (items, index, new DialogInterface.OnClickListener () {
+    				public void onClick (DialogInterface dialog, int item) {
+    					setCompactLocations (item == 1);
+    					dialog.dismiss ();
+    				}
+    			});
+    	} else if (id == DIALOG_MESSAGE_LIMITS) {
+    		final CharSequence	items[] = {"Off", "Relaxed", "Normal", "Strict"};
+    		int					index = AdmissionControl.getLevel (this);
+
+    		builder.setTitle ("Received message limits")
+    			.setSingleChoiceItems (items, index, new DialogInterface.OnClickListener () {
+    				public void onClick (DialogInterface dialog, int item) {
+    					AdmissionControl.setLevel (IAmHere.this, item);
+    					dialog.dismiss ();
+    				}
+    			});
+    	} else if (id == DIALOG_RETENTION) {
+    		final CharSequence	items[] = {"Keep everything", "One year",
+    											"Three months", "One month"};
+    		int					index = RetentionService.getLevel (this);
+
+    		builder.setTitle ("Keep received messages for")
+    			.setSingleChoiceItems (items, index, new DialogInterface.OnClickListener () {
+    				public void onClick (DialogInterface dialog, int item) {
+    					RetentionService.setLevel (IAmHere.this, item);
+    					RetentionService.runNow (IAmHere.this);
+    					dialog.dismiss ();
+    				}
+    			});
     	} else if (id == DIALOG_ABOUT) {
     		builder.setTitle (R.string.about_title)
     			.setIcon (R.drawable.about_icon)
@@ -241,13 +287,15 @@ public class IAmHere extends Activity {
     	String		msg
     ) {
     	if (_selfCheckBox.isChecked ()) {
-    		Database		db = new Database (this);
-    		
-    		if (db.open ()) {
-    			db.addSelfSentRecord (msg);
-    			db.close ();
-    			Toast.makeText (this, "Message successfully sent to self", Toast.LENGTH_LONG).show ();
-    		}
+    		DatabaseWriter.getInstance (this).addSelfSentRecord (msg,
+    					new DatabaseWriter.Callback<Long> () {
+    			public void done (Long id) {
+    				if (id != null && id.longValue () >= 0)
+    					Toast.makeText (IAmHere.this, "Message successfully sent to self", Toast.LENGTH_LONG).show ();
+    				else
+    					Toast.makeText (IAmHere.this, "Unable to save the message", Toast.LENGTH_LONG).show ();
+    			}
+    		});
     	} else
     		launchSmsSender (msg);
     }
@@ -313,7 +361,7 @@ public class IAmHere extends Activity {
 
     	if (s.equals ("")) {
     		showDialog (DIALOG_EMPTY_MESSAGE);
-    	} else if (s.contains ("geo:")) {
+    	} else if (_recognizer.contains (s)) {
     		if (s.length () <= 160)
     			dispatchMessage (s);
     		else
@@ -361,7 +409,26 @@ public class IAmHere extends Activity {
     }
 
     /*
-     * Append the location as a geo URI to the message being composed.
+     * Choose whether locations are added as compact codes rather than
+     * geo URIs. Compact codes are much shorter, but only understood by
+     * this application.
+     */
+    private void
+    setCompactLocations (
+    	boolean		flag
+    ) {
+    	_compactLocations = flag;
+
+    	SharedPreferences.Editor	editor = getSharedPreferences (
+    										"IAmHerePrefs", MODE_PRIVATE).edit ();
+
+    	editor.putBoolean ("compact_locations", flag);
+    	editor.commit ();
+    }
+
+    /*
+     * Append the location as a geo URI or compact code to the message
+     * being composed.
      */
     private void
     appendLocation (
@@ -371,7 +438,13 @@ public class IAmHere extends Activity {
     		return;
 
     	String		s = _messageEditor.getText ().toString ();
-    	String		geo = GeoUri.locationToString (loc);
+    	String		geo;
+
+    		// Only write as many digits as the accuracy justifies.
+    	if (_compactLocations)
+    		geo = CompactLocation.locationToString (loc, true);
+    	else
+    		geo = GeoUri.locationToString (loc, true);
 
     	if (s == null || s.length () == 0)
     		s = geo;
@@ -423,6 +496,15 @@ public class IAmHere extends Activity {
     	item = menu.add (0, MENU_SETTINGS, 0, "Settings");
     	item.setIcon (android.R.drawable.ic_menu_preferences);
 
+    	item = menu.add (0, MENU_LOCATION_FORMAT, 0, "Location format");
+    	item.setIcon (android.R.drawable.ic_menu_mylocation);
+
+    	item = menu.add (0, MENU_MESSAGE_LIMITS, 0, "Message limits");
+    	item.setIcon (android.R.drawable.ic_menu_manage);
+
+    	item = menu.add (0, MENU_RETENTION, 0, "Message history");
+    	item.setIcon (android.R.drawable.ic_menu_recent_history);
+
     	item = menu.add (0, MENU_ABOUT, 0, "About");
     	item.setIcon (android.R.drawable.ic_menu_info_details);
 
@@ -446,6 +528,15 @@ public class IAmHere extends Activity {
     		case MENU_SETTINGS:
     			showDialog (DIALOG_DISPLAY_UNITS);
     			return true;
+    		case MENU_LOCATION_FORMAT:
+    			showDialog (DIALOG_LOCATION_FORMAT);
+    			return true;
+    		case MENU_MESSAGE_LIMITS:
+    			showDialog (DIALOG_MESSAGE_LIMITS);
+    			return true;
+    		case MENU_RETENTION:
+    			showDialog (DIALOG_RETENTION);
+    			return true;
     		case MENU_ABOUT:
     			launchAboutScreen ();
     			return true;
@@ -0,0 +1,732 @@
+/*
+ * This class finds every location in a piece of text, in any of the
+ * supported formats, along with its character offsets.
+ *
+ * The formats are geo URIs, compact codes, maps URLs (q=, ll=, query=,
+ * daddr=, /@ and mlat=/mlon=), decimal "lat, lon" pairs, and degrees,
+ * minutes and seconds with hemisphere letters.
+ *
+ * The text is scanned once. The markers that introduce a location are
+ * matched together by an Aho-Corasick automaton, and coordinate pairs are
+ * only tried at the start of a word, so each character is normally looked
+ * at once. Results are kept in reusable arrays, so a recognizer can be
+ * used for any number of messages.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+public class LocationRecognizer {
+	private int					_count = 0;
+	private int					_start[] = new int[4];
+	private int					_end[] = new int[4];
+	private int					_format[] = new int[4];
+	private ParsedLocation		_locations[] = new ParsedLocation[4];
+	private double				_number;
+	private int					_decimalPlaces;
+
+	public static final int		FORMAT_GEO_URI = 0;
+	public static final int		FORMAT_COMPACT = 1;
+	public static final int		FORMAT_MAP_URL = 2;
+	public static final int		FORMAT_DECIMAL = 3;
+	public static final int		FORMAT_DMS = 4;
+
+		// The markers that can introduce a location, in lower case.
+	private static final String	MARKERS[] = {
+		"geo:", CompactLocation.PREFIX, "q=", "ll=", "query=", "daddr=",
+		"/@", "mlat="
+	};
+	private static final int	MARKER_GEO = 0;
+	private static final int	MARKER_COMPACT = 1;
+	private static final int	MARKER_AT = 6;
+	private static final int	MARKER_MLAT = 7;
+
+		// Decimal pairs in plain text need this many decimal places, so
+		// that ordinary numbers aren't mistaken for coordinates.
+	static final int			MIN_PLAIN_DECIMAL_PLACES = 3;
+	private static final int	MAX_DECIMAL_PLACES = 15;
+
+	private static final int	ALPHABET_SIZE = 128;
+	private static int			_transitions[][];
+	private static int			_matches[];
+
+	static {
+		buildAutomaton ();
+	}
+
+	/*
+	 * Find all the locations in the text.
+	 * Returns the number found.
+	 */
+	public int
+	scan (
+		final CharSequence	s
+	) {
+		return scan (s, 0, s.length (), Integer.MAX_VALUE);
+	}
+
+	/*
+	 * Does the text contain at least one location?
+	 */
+	public boolean
+	contains (
+		final CharSequence	s
+	) {
+		return (scan (s, 0, s.length (), 1) > 0);
+	}
+
+	/*
+	 * Find up to limit locations between the start and end positions.
+	 * Returns the number found.
+	 */
+	public int
+	scan (
+		final CharSequence	s,
+		final int			start,
+		final int			end,
+		final int			limit
+	) {
+		int			state = 0;
+		int			wordStart = start;
+		int			i;
+
+		_count = 0;
+
+		for (i = start; i < end && _count < limit; i++) {
+			char		c = s.charAt (i);
+
+			if (i == wordStart && isNumberStart (c)) {
+				ParsedLocation	pl = nextLocation ();
+				int				e;
+				int				format = FORMAT_DMS;
+
+					// The holder may still have the parameters of an
+					// earlier geo URI.
+				pl.clear ();
+				e = scanDms (s, i, end, pl);
+				if (e < 0) {
+					e = scanDecimalPair (s, i, end, MIN_PLAIN_DECIMAL_PLACES,
+																		pl);
+					format = FORMAT_DECIMAL;
+				}
+
+				if (e > 0) {
+					addMatch (i, e, format);
+					state = 0;
+					wordStart = e;
+					i = e - 1;
+					continue;
+				}
+			}
+
+			if (isSeparator (c))
+				wordStart = i + 1;
+
+			state = nextMarkerState (state, c);
+
+			int			marker = _matches[state];
+
+			if (marker < 0)
+				continue;
+
+			int			markerStart = i + 1 - MARKERS[marker].length ();
+			int			e = scanMarker (s, marker, markerStart, i + 1,
+															wordStart, end);
+
+			if (e > 0) {
+				state = 0;
+				wordStart = e;
+				i = e - 1;
+			}
+		}
+
+		return _count;
+	}
+
+	/*
+	 * Return the number of locations found by the last scan.
+	 */
+	public int
+	getCount () {
+		return _count;
+	}
+
+	/*
+	 * Return the position of the first character of a location.
+	 */
+	public int
+	getStart (
+		int			i
+	) {
+		return _start[i];
+	}
+
+	/*
+	 * Return the position just past the last character of a location.
+	 */
+	public int
+	getEnd (
+		int			i
+	) {
+		return _end[i];
+	}
+
+	/*
+	 * Return the format of a location, one of the FORMAT_ constants.
+	 */
+	public int
+	getFormat (
+		int			i
+	) {
+		return _format[i];
+	}
+
+	/*
+	 * Return the parsed contents of a location. The holder is reused by
+	 * the next scan.
+	 */
+	public ParsedLocation
+	getLocation (
+		int			i
+	) {
+		return _locations[i];
+	}
+
+	/*
+	 * Advance the marker automaton by one character. The start state
+	 * is zero.
+	 */
+	static int
+	nextMarkerState (
+		int			state,
+		char		c
+	) {
+		return _transitions[state][(c < ALPHABET_SIZE)
+										? Character.toLowerCase (c) : 0];
+	}
+
+	/*
+	 * Has the marker automaton just matched a marker?
+	 */
+	static boolean
+	isMarkerState (
+		int			state
+	) {
+		return (_matches[state] >= 0);
+	}
+
+	/*
+	 * Try to parse the location introduced by a marker.
+	 * Returns the end of the location, or -1 if there isn't one.
+	 */
+	private int
+	scanMarker (
+		final CharSequence	s,
+		int					marker,
+		int					markerStart,
+		int					pos,
+		int					wordStart,
+		int					end
+	) {
+		ParsedLocation	pl = nextLocation ();
+		int				e;
+
+		if (!isMarkerStart (s, marker, markerStart, wordStart))
+			return -1;
+
+		if (marker == MARKER_GEO) {
+			e = GeoUri.scan (s, markerStart, end, pl);
+			if (e > 0 && pl.isWgs84 ())
+				return addMatch (markerStart, e, FORMAT_GEO_URI);
+			return -1;
+		} else if (marker == MARKER_COMPACT) {
+			e = CompactLocation.scan (s, markerStart, end, pl);
+			if (e > 0)
+				return addMatch (markerStart, e, FORMAT_COMPACT);
+			return -1;
+		}
+
+		pl.clear ();
+
+		if (marker == MARKER_MLAT) {
+			if ((e = scanNumber (s, pos, end)) < 0)
+				return -1;
+
+			double		lat = _number;
+
+			if (!regionMatches (s, e, end, "&mlon=")
+								|| (e = scanNumber (s, e + 6, end)) < 0
+								|| !setCoordinates (pl, lat, _number))
+				return -1;
+		} else if ((e = scanDecimalPair (s, pos, end, 0, pl)) < 0)
+			return -1;
+
+			// The location covers the whole URL.
+		while (e < end && !isSeparator (s.charAt (e)))
+			e++;
+
+		return addMatch (wordStart, e, FORMAT_MAP_URL);
+	}
+
+	/*
+	 * Can a marker start here? URL parameters must follow a '?', '&' or
+	 * '/', or start a word, and compact codes must start a word, so that
+	 * words like "freq=" and "laugh:" aren't taken as markers.
+	 */
+	private static boolean
+	isMarkerStart (
+		final CharSequence	s,
+		int					marker,
+		int					markerStart,
+		int					wordStart
+	) {
+		if (markerStart == wordStart || marker == MARKER_GEO
+													|| marker == MARKER_AT)
+			return true;
+
+		char		c = s.charAt (markerStart - 1);
+
+		if (marker == MARKER_COMPACT)
+			return !Character.isLetterOrDigit (c);
+
+		return (c == '?' || c == '&' || c == '/');
+	}
+
+	/*
+	 * Scan a pair of decimal latitude and longitude values, separated by
+	 * a comma, each with at least the specified number of decimal places.
+	 * Returns the end of the pair, or -1 if there isn't one.
+	 */
+	private int
+	scanDecimalPair (
+		final CharSequence		s,
+		int						pos,
+		final int				end,
+		final int				minDecimalPlaces,
+		final ParsedLocation	pl
+	) {
+		if ((pos = scanNumber (s, pos, end)) < 0
+								|| _decimalPlaces < minDecimalPlaces)
+			return -1;
+
+		double		lat = _number;
+
+		pos = skipDegreeSign (s, pos, end);
+		pos = skipSpaces (s, pos, end);
+
+		if (pos < end && s.charAt (pos) == ',')
+			pos++;
+		else if (regionMatches (s, pos, end, "%2c"))
+			pos += 3;
+		else
+			return -1;
+
+		pos = skipSpaces (s, pos, end);
+
+		if ((pos = scanNumber (s, pos, end)) < 0
+								|| _decimalPlaces < minDecimalPlaces)
+			return -1;
+
+		pos = skipDegreeSign (s, pos, end);
+
+		if (pos < end && Character.isLetterOrDigit (s.charAt (pos)))
+			return -1;
+
+		if (!setCoordinates (pl, lat, _number))
+			return -1;
+
+		return pos;
+	}
+
+	/*
+	 * Scan a latitude and longitude written as degrees, optional minutes
+	 * and seconds, and a hemisphere letter, e.g. 37 48'49"S 144 57'47"E
+	 * with a degree sign after each number of degrees.
+	 * Returns the end of the pair, or -1 if there isn't one.
+	 */
+	private int
+	scanDms (
+		final CharSequence		s,
+		int						pos,
+		final int				end,
+		final ParsedLocation	pl
+	) {
+		if ((pos = scanDmsComponent (s, pos, end, 'n', 's')) < 0)
+			return -1;
+
+		double		lat = _number;
+
+		pos = skipSpaces (s, pos, end);
+		if (pos < end && s.charAt (pos) == ',')
+			pos = skipSpaces (s, pos + 1, end);
+
+		if ((pos = scanDmsComponent (s, pos, end, 'e', 'w')) < 0)
+			return -1;
+
+		if (pos < end && Character.isLetterOrDigit (s.charAt (pos)))
+			return -1;
+
+		if (!setCoordinates (pl, lat, _number))
+			return -1;
+
+		return pos;
+	}
+
+	/*
+	 * Scan one degrees/minutes/seconds value followed by a hemisphere
+	 * letter, leaving the signed value in _number.
+	 * Returns the end of the value, or -1 if there isn't one.
+	 */
+	private int
+	scanDmsComponent (
+		final CharSequence	s,
+		int					pos,
+		final int			end,
+		char				positive,
+		char				negative
+	) {
+		if (pos >= end || s.charAt (pos) < '0' || s.charAt (pos) > '9'
+								|| (pos = scanNumber (s, pos, end)) < 0
+								|| pos >= end || !isDegreeSign (s.charAt (pos)))
+			return -1;
+
+		double		value = _number;
+		int			e;
+
+		pos = skipSpaces (s, pos + 1, end);
+
+		if ((e = scanNumber (s, pos, end)) > 0 && e < end
+											&& isMinuteSign (s.charAt (e))) {
+			value += _number / 60.0;
+			pos = skipSpaces (s, e + 1, end);
+
+			if ((e = scanNumber (s, pos, end)) > 0 && e < end
+											&& isSecondSign (s.charAt (e))) {
+				value += _number / 3600.0;
+				pos = e + 1;
+				if (s.charAt (e) == '\'' && pos < end && s.charAt (pos) == '\'')
+					pos++;		// Two single quotes.
+				pos = skipSpaces (s, pos, end);
+			}
+		}
+
+		if (pos >= end)
+			return -1;
+
+		char		c = Character.toLowerCase (s.charAt (pos));
+
+		if (c == positive)
+			_number = value;
+		else if (c == negative)
+			_number = -value;
+		else
+			return -1;
+
+		return pos + 1;
+	}
+
+	/*
+	 * Scan an optionally-signed decimal number, leaving its value in
+	 * _number and its number of decimal places in _decimalPlaces.
+	 * Returns the end of the number, or -1 if there isn't one.
+	 */
+	private int
+	scanNumber (
+		final CharSequence	s,
+		int					pos,
+		final int			end
+	) {
+		boolean		negative = false;
+		double		value = 0.0;
+		double		scale = 1.0;
+		int			digits = 0;
+
+		if (pos < end && (s.charAt (pos) == '-' || s.charAt (pos) == '+')) {
+			negative = (s.charAt (pos) == '-');
+			pos++;
+		}
+
+		for (; pos < end; pos++) {
+			char		c = s.charAt (pos);
+
+			if (c < '0' || c > '9')
+				break;
+			value = value * 10.0 + (c - '0');
+			digits++;
+		}
+
+		if (digits == 0)
+			return -1;
+
+		_decimalPlaces = 0;
+		if (pos + 1 < end && s.charAt (pos) == '.'
+								&& s.charAt (pos + 1) >= '0'
+								&& s.charAt (pos + 1) <= '9') {
+			long		fraction = 0;
+
+				// Dividing once at the end keeps the value exact for the
+				// number of places people actually write.
+			for (pos++; pos < end; pos++) {
+				char		c = s.charAt (pos);
+
+				if (c < '0' || c > '9')
+					break;
+				if (_decimalPlaces < MAX_DECIMAL_PLACES) {
+					fraction = fraction * 10 + (c - '0');
+					scale *= 10.0;
+				}
+				_decimalPlaces++;
+			}
+
+			value += fraction / scale;
+		}
+
+		_number = negative ? -value : value;
+
+		return pos;
+	}
+
+	/*
+	 * Store a latitude and longitude, if they are in range.
+	 */
+	private static boolean
+	setCoordinates (
+		final ParsedLocation	pl,
+		double					lat,
+		double					lon
+	) {
+		if (lat < -90.0 || lat > 90.0 || lon < -180.0 || lon > 180.0)
+			return false;
+
+		pl.setLatitude (lat);
+		pl.setLongitude (lon);
+
+		return true;
+	}
+
+	/*
+	 * Return the holder for the next location, allocating more room
+	 * if necessary.
+	 */
+	private ParsedLocation
+	nextLocation () {
+		if (_count == _start.length) {
+			int				n = _count * 2;
+			int				a[];
+			ParsedLocation	pa[] = new ParsedLocation[n];
+
+			a = new int[n];
+			System.arraycopy (_start, 0, a, 0, _count);
+			_start = a;
+			a = new int[n];
+			System.arraycopy (_end, 0, a, 0, _count);
+			_end = a;
+			a = new int[n];
+			System.arraycopy (_format, 0, a, 0, _count);
+			_format = a;
+			System.arraycopy (_locations, 0, pa, 0, _count);
+			_locations = pa;
+		}
+
+		if (_locations[_count] == null)
+			_locations[_count] = new ParsedLocation ();
+
+		return _locations[_count];
+	}
+
+	/*
+	 * Record the location stored in the next holder.
+	 * Returns the end position.
+	 */
+	private int
+	addMatch (
+		int			start,
+		int			end,
+		int			format
+	) {
+		_start[_count] = start;
+		_end[_count] = end;
+		_format[_count] = format;
+		_count++;
+
+		return end;
+	}
+
+	/*
+	 * Does the region of text start with the lower-case string,
+	 * ignoring case?
+	 */
+	private static boolean
+	regionMatches (
+		final CharSequence	s,
+		int					pos,
+		int					end,
+		String				lower
+	) {
+		int			n = lower.length ();
+
+		if (end - pos < n)
+			return false;
+
+		return ParsedLocation.regionEqualsIgnoreCase (s, pos, pos + n, lower);
+	}
+
+	/*
+	 * Skip over any spaces.
+	 */
+	private static int
+	skipSpaces (
+		final CharSequence	s,
+		int					pos,
+		final int			end
+	) {
+		while (pos < end && s.charAt (pos) == ' ')
+			pos++;
+
+		return pos;
+	}
+
+	/*
+	 * Skip over a degree sign, if there is one.
+	 */
+	private static int
+	skipDegreeSign (
+		final CharSequence	s,
+		int					pos,
+		final int			end
+	) {
+		if (pos < end && isDegreeSign (s.charAt (pos)))
+			pos++;
+
+		return pos;
+	}
+
+	/*
+	 * Can a number start with this character?
+	 */
+	private static boolean
+	isNumberStart (
+		char		c
+	) {
+		return ((c >= '0' && c <= '9') || c == '-' || c == '+');
+	}
+
+	/*
+	 * Does the character separate words?
+	 */
+	private static boolean
+	isSeparator (
+		char		c
+	) {
+		return (Character.isWhitespace (c) || c == '(' || c == '['
+																|| c == '"');
+	}
+
+	/*
+	 * Is the character a degree sign, or the ordinal indicator that is
+	 * often typed instead?
+	 */
+	static boolean
+	isDegreeSign (
+		char		c
+	) {
+		return (c == '\u00b0' || c == '\u00ba');
+	}
+
+	/*
+	 * Is the character a minute sign?
+	 */
+	private static boolean
+	isMinuteSign (
+		char		c
+	) {
+		return (c == '\'' || c == '\u2032' || c == '\u2019');
+	}
+
+	/*
+	 * Is the character a second sign?
+	 */
+	private static boolean
+	isSecondSign (
+		char		c
+	) {
+		return (c == '"' || c == '\u2033' || c == '\u201d' || c == '\'');
+	}
+
+	/*
+	 * Build the Aho-Corasick automaton that matches the markers, as a
+	 * complete transition table over ASCII.
+	 */
+	private static void
+	buildAutomaton () {
+		int			maxStates = 1;
+		int			i, j, c;
+
+		for (i = 0; i < MARKERS.length; i++)
+			maxStates += MARKERS[i].length ();
+
+		int			go[][] = new int[maxStates][ALPHABET_SIZE];
+		int			fail[] = new int[maxStates];
+		int			match[] = new int[maxStates];
+		int			queue[] = new int[maxStates];
+		int			numStates = 1;
+
+		for (i = 0; i < maxStates; i++) {
+			match[i] = -1;
+			for (c = 0; c < ALPHABET_SIZE; c++)
+				go[i][c] = -1;
+		}
+
+			// Build the trie.
+		for (i = 0; i < MARKERS.length; i++) {
+			int			state = 0;
+
+			for (j = 0; j < MARKERS[i].length (); j++) {
+				c = MARKERS[i].charAt (j);
+				if (go[state][c] < 0)
+					go[state][c] = numStates++;
+				state = go[state][c];
+			}
+			match[state] = i;
+		}
+
+			// Breadth-first, fill in the failure transitions.
+		int			head = 0, tail = 0;
+
+		for (c = 0; c < ALPHABET_SIZE; c++) {
+			if (go[0][c] < 0)
+				go[0][c] = 0;
+			else {
+				fail[go[0][c]] = 0;
+				queue[tail++] = go[0][c];
+			}
+		}
+
+		while (head < tail) {
+			int			state = queue[head++];
+
+			if (match[state] < 0)
+				match[state] = match[fail[state]];
+
+			for (c = 0; c < ALPHABET_SIZE; c++) {
+				int			next = go[state][c];
+
+				if (next < 0)
+					go[state][c] = go[fail[state]][c];
+				else {
+					fail[next] = go[fail[state]][c];
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		_transitions = new int[numStates][];
+		System.arraycopy (go, 0, _transitions, 0, numStates);
+		_matches = new int[numStates];
+		System.arraycopy (match, 0, _matches, 0, numStates);
+	}
+}
@@ -0,0 +1,517 @@
+/*
+ * This class exports the message history to a file, and imports it back,
+ * as GPX, KML or newline-delimited JSON.
+ *
+ * GPX and KML files hold one waypoint or placemark per location, with the
+ * sender as its name and the whole message as its description. JSON files
+ * hold one message per line, including those without a location.
+ *
+ * Rows are streamed from a cursor to a buffered writer, and files are
+ * read with a pull parser or a line at a time, so memory use doesn't grow
+ * with the size of the history. Imported messages are saved in batches,
+ * one transaction per batch.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.location.Location;
+import android.os.Environment;
+import android.util.Xml;
+
+public class MessageArchive {
+	private Database			_database;
+	private DatabaseWriter		_writer;
+	private LocationRecognizer	_recognizer = new LocationRecognizer ();
+	private SimpleDateFormat	_dateFormat;
+
+		// Messages waiting to be imported.
+	private long				_timestamps[] = new long[IMPORT_BATCH];
+	private boolean				_viewed[] = new boolean[IMPORT_BATCH];
+	private String				_phones[] = new String[IMPORT_BATCH];
+	private String				_messages[] = new String[IMPORT_BATCH];
+	private int					_pending = 0;
+	private int					_imported = 0;
+
+	public static final int		FORMAT_GPX = 0;
+	public static final int		FORMAT_KML = 1;
+	public static final int		FORMAT_NDJSON = 2;
+
+	public static final String	FORMAT_NAMES[] = {"GPX", "KML", "JSON"};
+
+	private static final String	EXTENSIONS[] = {"gpx", "kml", "ndjson"};
+	private static final String	GPX_NAMESPACE = "http://www.topografix.com/GPX/1/1";
+	private static final String	KML_NAMESPACE = "http://www.opengis.net/kml/2.2";
+	private static final String	UNKNOWN_SENDER = "Imported";
+
+	private static final int	IMPORT_BATCH = 100;
+	private static final int	BUFFER_SIZE = 8192;
+
+	/*
+	 * Constructor.
+	 */
+	public MessageArchive (
+		Context		context
+	) {
+		_database = Database.getInstance (context);
+		_writer = DatabaseWriter.getInstance (context);
+		_dateFormat = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		_dateFormat.setTimeZone (TimeZone.getTimeZone ("UTC"));
+	}
+
+	/*
+	 * Return the file that a format is exported to and imported from.
+	 */
+	public static File
+	getFile (
+		int			format
+	) {
+		return new File (Environment.getExternalStorageDirectory (),
+								"IAmHere/messages." + EXTENSIONS[format]);
+	}
+
+	/*
+	 * Export all the messages to a file, replacing it.
+	 * Returns the number of messages or locations written.
+	 */
+	public int
+	exportTo (
+		int			format,
+		File		file
+	) throws IOException {
+		File		dir = file.getParentFile ();
+
+		if (dir != null && !dir.isDirectory () && !dir.mkdirs ())
+			throw new IOException ("Can't create " + dir);
+
+		Writer		out = new BufferedWriter (new OutputStreamWriter (
+							new FileOutputStream (file), "UTF-8"), BUFFER_SIZE);
+
+		try {
+			if (format == FORMAT_NDJSON)
+				return exportJson (out);
+			else
+				return exportXml (out, format);
+		} finally {
+			out.close ();
+		}
+	}
+
+	/*
+	 * Write one JSON object per message.
+	 */
+	private int
+	exportJson (
+		Writer		out
+	) throws IOException {
+		Cursor		c = _database.exportMessages ();
+		int			n = 0;
+
+		if (c == null)
+			throw new IOException ("Can't read the messages");
+
+		try {
+			while (c.moveToNext ()) {
+				JSONObject	json = new JSONObject ();
+
+				try {
+					json.put ("timestamp", c.getLong (0));
+					json.put ("viewed", c.getInt (1) != 0);
+					json.put ("phone", c.getString (2));
+					json.put ("message", c.getString (3));
+				} catch (JSONException e) {
+					continue;
+				}
+
+				out.write (json.toString ());
+				out.write ('\n');
+				n++;
+			}
+		} finally {
+			c.close ();
+		}
+
+		return n;
+	}
+
+	/*
+	 * Write a GPX waypoint or KML placemark per location.
+	 */
+	private int
+	exportXml (
+		Writer		out,
+		int			format
+	) throws IOException {
+		Cursor			c = _database.exportTargets ();
+		XmlSerializer	xml = Xml.newSerializer ();
+		boolean			gpx = (format == FORMAT_GPX);
+		String			ns = gpx ? GPX_NAMESPACE : KML_NAMESPACE;
+		int				n = 0;
+
+		if (c == null)
+			throw new IOException ("Can't read the messages");
+
+		try {
+			xml.setOutput (out);
+			xml.startDocument ("UTF-8", null);
+			xml.setPrefix ("", ns);
+
+			if (gpx) {
+				xml.startTag (ns, "gpx");
+				xml.attribute (null, "version", "1.1");
+				xml.attribute (null, "creator", "I Am Here");
+			} else {
+				xml.startTag (ns, "kml");
+				xml.startTag (ns, "Document");
+			}
+
+			while (c.moveToNext ()) {
+				String		time = _dateFormat.format (new Date (c.getLong (0)));
+				String		lat = Double.toString (c.getDouble (3));
+				String		lon = Double.toString (c.getDouble (4));
+				String		alt = c.isNull (5) ? null
+										: Double.toString (c.getDouble (5));
+
+				if (gpx) {
+					xml.startTag (ns, "wpt");
+					xml.attribute (null, "lat", lat);
+					xml.attribute (null, "lon", lon);
+					if (alt != null)
+						textElement (xml, ns, "ele", alt);
+					textElement (xml, ns, "time", time);
+					textElement (xml, ns, "name", c.getString (1));
+					textElement (xml, ns, "desc", c.getString (2));
+					xml.endTag (ns, "wpt");
+				} else {
+					xml.startTag (ns, "Placemark");
+					textElement (xml, ns, "name", c.getString (1));
+					textElement (xml, ns, "description", c.getString (2));
+					xml.startTag (ns, "TimeStamp");
+					textElement (xml, ns, "when", time);
+					xml.endTag (ns, "TimeStamp");
+					xml.startTag (ns, "Point");
+					textElement (xml, ns, "coordinates", lon + "," + lat
+										+ ((alt == null) ? "" : "," + alt));
+					xml.endTag (ns, "Point");
+					xml.endTag (ns, "Placemark");
+				}
+
+				n++;
+			}
+
+			if (gpx)
+				xml.endTag (ns, "gpx");
+			else {
+				xml.endTag (ns, "Document");
+				xml.endTag (ns, "kml");
+			}
+
+			xml.endDocument ();
+		} finally {
+			c.close ();
+		}
+
+		return n;
+	}
+
+	/*
+	 * Write an element holding some text, if there is any.
+	 */
+	private static void
+	textElement (
+		XmlSerializer	xml,
+		String			ns,
+		String			name,
+		String			text
+	) throws IOException {
+		if (text == null)
+			return;
+
+		xml.startTag (ns, name);
+		xml.text (text);
+		xml.endTag (ns, name);
+	}
+
+	/*
+	 * Import the messages in a file. Messages that are already saved are
+	 * skipped. Returns the number of messages saved.
+	 */
+	public int
+	importFrom (
+		int			format,
+		File		file
+	) throws IOException {
+		BufferedReader	in = new BufferedReader (new InputStreamReader (
+							new FileInputStream (file), "UTF-8"), BUFFER_SIZE);
+
+		_pending = 0;
+		_imported = 0;
+
+		try {
+			if (format == FORMAT_NDJSON)
+				importJson (in);
+			else
+				importXml (in);
+
+			flush ();
+		} finally {
+			in.close ();
+		}
+
+		return _imported;
+	}
+
+	/*
+	 * Read one JSON object per line. Lines that can't be parsed are
+	 * skipped.
+	 */
+	private void
+	importJson (
+		BufferedReader	in
+	) throws IOException {
+		String			line;
+
+		while ((line = in.readLine ()) != null) {
+			JSONObject	json;
+
+			if (line.trim ().length () == 0)
+				continue;
+
+			try {
+				json = new JSONObject (line);
+			} catch (JSONException e) {
+				continue;
+			}
+
+			String		message = json.optString ("message", null);
+
+			if (message == null)
+				continue;
+
+			add (json.optLong ("timestamp", System.currentTimeMillis ()),
+						json.optBoolean ("viewed", true),
+						json.optString ("phone", UNKNOWN_SENDER), message);
+		}
+	}
+
+	/*
+	 * Read the waypoints, track points and route points of a GPX file, or
+	 * the point placemarks of a KML file.
+	 */
+	private void
+	importXml (
+		Reader		in
+	) throws IOException {
+		XmlPullParser	parser = Xml.newPullParser ();
+		boolean			inPoint = false;
+		String			name = null, desc = null, time = null;
+		String			coordinates = null;
+		double			lat = Double.NaN, lon = Double.NaN;
+		double			alt = Double.NaN;
+
+		try {
+			parser.setInput (in);
+
+			int			event;
+
+			while ((event = parser.next ()) != XmlPullParser.END_DOCUMENT) {
+				String		tag = parser.getName ();
+
+				if (event == XmlPullParser.START_TAG) {
+					if (isPointTag (tag)) {
+						inPoint = true;
+						name = desc = time = coordinates = null;
+						lat = parseDouble (parser.getAttributeValue (null,
+																	"lat"));
+						lon = parseDouble (parser.getAttributeValue (null,
+																	"lon"));
+						alt = Double.NaN;
+					} else if (!inPoint)
+						continue;
+					else if (tag.equals ("name"))
+						name = parser.nextText ();
+					else if (tag.equals ("desc")
+										|| tag.equals ("description"))
+						desc = parser.nextText ();
+					else if (tag.equals ("time") || tag.equals ("when"))
+						time = parser.nextText ();
+					else if (tag.equals ("ele"))
+						alt = parseDouble (parser.nextText ());
+					else if (tag.equals ("coordinates"))
+						coordinates = parser.nextText ();
+				} else if (event == XmlPullParser.END_TAG && isPointTag (tag)) {
+					inPoint = false;
+
+						// KML coordinates are longitude,latitude[,altitude].
+					if (coordinates != null) {
+						String		a[] = coordinates.trim ().split (
+															"[,\\s]+", 4);
+
+						lon = (a.length > 0) ? parseDouble (a[0]) : Double.NaN;
+						lat = (a.length > 1) ? parseDouble (a[1]) : Double.NaN;
+						if (a.length > 2)
+							alt = parseDouble (a[2]);
+					}
+
+					addPoint (name, desc, time, lat, lon, alt);
+				}
+			}
+		} catch (XmlPullParserException e) {
+			throw new IOException ("Invalid file: " + e.getMessage ());
+		}
+	}
+
+	/*
+	 * Is the tag one that holds a single location?
+	 */
+	private static boolean
+	isPointTag (
+		String		tag
+	) {
+		return (tag.equals ("wpt") || tag.equals ("trkpt")
+						|| tag.equals ("rtept") || tag.equals ("Placemark"));
+	}
+
+	/*
+	 * Add a location read from GPX or KML. If its description doesn't
+	 * already contain the location, as exported ones do, a geo URI is
+	 * appended to it.
+	 */
+	private void
+	addPoint (
+		String		name,
+		String		desc,
+		String		time,
+		double		lat,
+		double		lon,
+		double		alt
+	) throws IOException {
+		if (Double.isNaN (lat) || Double.isNaN (lon)
+									|| Math.abs (lat) > 90.0
+									|| Math.abs (lon) > 180.0)
+			return;
+
+		String		message = desc;
+
+		if (message == null || !_recognizer.contains (message)) {
+			Location	loc = new Location ("GeoUri");
+
+			loc.setLatitude (lat);
+			loc.setLongitude (lon);
+			if (!Double.isNaN (alt))
+				loc.setAltitude (alt);
+
+			message = ((message == null) ? "" : message + " ")
+											+ GeoUri.locationToString (loc);
+		}
+
+		add (parseTime (time), true, (name == null || name.length () == 0)
+											? UNKNOWN_SENDER : name, message);
+	}
+
+	/*
+	 * Queue a message for importing, saving the batch if it's full.
+	 */
+	private void
+	add (
+		long		timestamp,
+		boolean		viewed,
+		String		phone,
+		String		message
+	) throws IOException {
+		_timestamps[_pending] = timestamp;
+		_viewed[_pending] = viewed;
+		_phones[_pending] = phone;
+		_messages[_pending] = message;
+
+		if (++_pending == IMPORT_BATCH)
+			flush ();
+	}
+
+	/*
+	 * Save the queued messages in one transaction.
+	 */
+	private void
+	flush () throws IOException {
+		if (_pending == 0)
+			return;
+
+		final int	count = _pending;
+		Integer		n = _writer.execute (new DatabaseWriter.Write<Integer> () {
+			public Integer run (Database db) {
+				return Integer.valueOf (db.importRecords (_timestamps, _viewed,
+												_phones, _messages, count));
+			}
+		});
+
+		if (n == null || n.intValue () < 0)
+			throw new IOException ("Can't save the messages");
+
+		_imported += n.intValue ();
+		_pending = 0;
+	}
+
+	/*
+	 * Parse an ISO 8601 time stamp in UTC, with or without fractions of
+	 * a second. Returns the current time if it can't be parsed.
+	 */
+	private long
+	parseTime (
+		String		s
+	) {
+		if (s != null) {
+			String		t = s.trim ().replaceFirst ("\\.\\d+Z$", "Z");
+
+			try {
+				return _dateFormat.parse (t).getTime ();
+			} catch (ParseException e) {
+			}
+		}
+
+		return System.currentTimeMillis ();
+	}
+
+	/*
+	 * Parse a number, returning NaN if it can't be parsed.
+	 */
+	private static double
+	parseDouble (
+		String		s
+	) {
+		if (s == null)
+			return Double.NaN;
+
+		try {
+			return Double.parseDouble (s.trim ());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
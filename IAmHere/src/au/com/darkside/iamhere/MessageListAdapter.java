@@ -0,0 +1,475 @@
+/*
+ * This class supplies the received messages to a list view a page at a
+ * time, loading the next page in the background as the list is scrolled
+ * towards the end of what has been loaded.
+ *
+ * Pages are read by key, below the lowest id loaded so far, so a page
+ * costs the same however far down the list it is. Only the columns the
+ * list shows are kept, with long messages cut short. At most MAX_ROWS
+ * are kept, as a window that slides along the messages: rows scrolled
+ * far past are dropped, and read again if the list is scrolled back.
+ * When the messages change, only the first page is read again, in the
+ * background, and merged into the loaded rows.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+public class MessageListAdapter extends BaseAdapter {
+	private Context				_context;
+	private ListView			_list;
+	private Database			_database;
+	private LayoutInflater		_inflater;
+	private String				_senderKey = null;
+	private String				_query = null;
+	private ArrayList<Row>		_rows = new ArrayList<Row> ();
+	private boolean				_complete = false;
+	private boolean				_newer = false;
+	private PageLoader			_loader = null;
+	private int					_generation = 0;
+
+	public static final int		PAGE_SIZE = 50;
+
+		// The most rows kept. Beyond this, rows are dropped from the end
+		// furthest from where the list is being scrolled.
+	public static final int		MAX_ROWS = 1000;
+
+		// How close to either end of the loaded rows the list can get
+		// before the next page is requested.
+	private static final int	PREFETCH_DISTANCE = 20;
+
+		// Which page a loader reads.
+	private static final int	LOAD_FIRST = 0;
+	private static final int	LOAD_OLDER = 1;
+	private static final int	LOAD_NEWER = 2;
+
+	/*
+	 * The columns of one message shown in the list.
+	 */
+	private static class Row {
+		public long			id;
+		public String		phone;
+		public String		senderKey;
+		public String		message;
+	}
+
+	/*
+	 * Loads a page of rows in the background, and adds them to the list
+	 * if it hasn't been reloaded in the meantime. The page is either the
+	 * first one, or the one before or after an id.
+	 */
+	private class PageLoader extends AsyncTask<Void, Void, ArrayList<Row>> {
+		private int			_loaderGeneration;
+		private String		_loaderSenderKey;
+		private String		_loaderQuery;
+		private int			_which;
+		private long		_id;
+
+		/*
+		 * Constructor.
+		 */
+		public PageLoader (
+			int			which,
+			long		id
+		) {
+			_loaderGeneration = _generation;
+			_loaderSenderKey = _senderKey;
+			_loaderQuery = _query;
+			_which = which;
+			_id = id;
+		}
+
+		/*
+		 * Read the page, off the UI thread.
+		 */
+		@Override
+		protected ArrayList<Row>
+		doInBackground (
+			Void...		params
+		) {
+			return readPage (_loaderSenderKey, _loaderQuery, _id,
+										_which == LOAD_NEWER, PAGE_SIZE);
+		}
+
+		/*
+		 * Add the page to the list.
+		 */
+		@Override
+		protected void
+		onPostExecute (
+			ArrayList<Row>	rows
+		) {
+			if (_loader == this)
+				_loader = null;
+
+			if (_loaderGeneration != _generation || rows == null)
+				return;
+
+			if (_which == LOAD_FIRST)
+				mergeFirstPage (rows);
+			else if (_which == LOAD_OLDER)
+				appendPage (rows);
+			else
+				prependPage (rows);
+		}
+	}
+
+	/*
+	 * Constructor.
+	 */
+	public MessageListAdapter (
+		Context		context,
+		ListView	list
+	) {
+		_context = context;
+		_list = list;
+		_database = Database.getInstance (context);
+		_inflater = LayoutInflater.from (context);
+	}
+
+	/*
+	 * Show only the messages from one sender, or all the messages if the
+	 * key is null, that match a search query, or all of them if the query
+	 * is null. The first page is loaded straight away.
+	 */
+	public void
+	setFilter (
+		String		senderKey,
+		String		query
+	) {
+		ArrayList<Row>	rows = readPage (senderKey, query, Long.MAX_VALUE,
+															false, PAGE_SIZE);
+
+		_senderKey = senderKey;
+		_query = query;
+		cancelLoader ();
+
+		_newer = false;
+		_rows.clear ();
+		if (rows != null) {
+			_rows.addAll (rows);
+			_complete = (rows.size () < PAGE_SIZE);
+		} else
+			_complete = true;
+
+		notifyDataSetChanged ();
+	}
+
+	/*
+	 * Read the first page again in the background, after the messages
+	 * have changed. The rows below it are kept, so the list doesn't jump.
+	 * If the first page isn't loaded, new messages are read when the
+	 * list is scrolled back up to them.
+	 */
+	public void
+	refresh () {
+		if (_newer)
+			return;
+
+		cancelLoader ();
+		_loader = new PageLoader (LOAD_FIRST, Long.MAX_VALUE);
+		_loader.execute ();
+	}
+
+	/*
+	 * Remove the rows of deleted messages, which may be below the first
+	 * page.
+	 */
+	public void
+	remove (
+		long		ids[]
+	) {
+		HashSet<Long>	deleted = new HashSet<Long> (ids.length * 2);
+		int				i;
+
+		for (i = 0; i < ids.length; i++)
+			deleted.add (Long.valueOf (ids[i]));
+
+		for (i = _rows.size () - 1; i >= 0; i--)
+			if (deleted.contains (Long.valueOf (_rows.get (i).id)))
+				_rows.remove (i);
+
+		notifyDataSetChanged ();
+	}
+
+	/*
+	 * Stop any page being loaded from being added to the list.
+	 */
+	private void
+	cancelLoader () {
+		_generation++;
+		if (_loader != null) {
+			_loader.cancel (false);
+			_loader = null;
+		}
+	}
+
+	/*
+	 * Replace the loaded rows down to the end of a newly read first page
+	 * with that page. If the page is short, it holds all the messages.
+	 * If the whole page is newer than the loaded rows, there may be
+	 * messages between them, so the loaded rows are replaced.
+	 */
+	private void
+	mergeFirstPage (
+		ArrayList<Row>	rows
+	) {
+		if (rows.size () < PAGE_SIZE) {
+			_rows.clear ();
+			_rows.addAll (rows);
+			_complete = true;
+			notifyDataSetChanged ();
+			return;
+		}
+
+		long		lastId = rows.get (rows.size () - 1).id;
+		int			keep = 0;
+
+		if (!_rows.isEmpty () && _rows.get (0).id < lastId)
+			keep = _rows.size ();
+		else {
+			while (keep < _rows.size () && _rows.get (keep).id >= lastId)
+				keep++;
+		}
+
+		_rows.subList (0, keep).clear ();
+		_rows.addAll (0, rows);
+		if (_rows.size () == rows.size ())
+			_complete = false;
+
+		trimEnd ();
+		notifyDataSetChanged ();
+	}
+
+	/*
+	 * Add a page of older rows to the end. If there are too many rows,
+	 * the newest are dropped, and the list is kept where it is.
+	 */
+	private void
+	appendPage (
+		ArrayList<Row>	rows
+	) {
+		int			excess;
+
+		_rows.addAll (rows);
+		_complete = (rows.size () < PAGE_SIZE);
+
+		excess = _rows.size () - MAX_ROWS;
+		if (excess <= 0) {
+			notifyDataSetChanged ();
+			return;
+		}
+
+		_rows.subList (0, excess).clear ();
+		_newer = true;
+		shiftList (-excess);
+	}
+
+	/*
+	 * Add a page of newer rows, read oldest first, to the start. If there
+	 * are too many rows, the oldest are dropped. The list is kept where
+	 * it is.
+	 */
+	private void
+	prependPage (
+		ArrayList<Row>	rows
+	) {
+		int			i;
+
+		for (i = 0; i < rows.size (); i++)
+			_rows.add (0, rows.get (i));
+
+		_newer = (rows.size () == PAGE_SIZE);
+		trimEnd ();
+		shiftList (rows.size ());
+	}
+
+	/*
+	 * Drop the oldest rows, if there are too many.
+	 */
+	private void
+	trimEnd () {
+		if (_rows.size () <= MAX_ROWS)
+			return;
+
+		_rows.subList (MAX_ROWS, _rows.size ()).clear ();
+		_complete = false;
+	}
+
+	/*
+	 * Redraw the list after rows have been added or removed at the start,
+	 * moving it by the number added so the same rows stay in view.
+	 */
+	private void
+	shiftList (
+		int			n
+	) {
+		int			first = _list.getFirstVisiblePosition ();
+		View		v = _list.getChildAt (0);
+		int			top = (v == null) ? 0 : v.getTop ();
+
+		notifyDataSetChanged ();
+		_list.setSelectionFromTop (Math.max (0, first + n), top);
+	}
+
+	/*
+	 * Start loading the next page, unless it's already being loaded or
+	 * there are no more messages.
+	 */
+	private void
+	loadMore () {
+		if (_loader != null || _complete || _rows.isEmpty ())
+			return;
+
+		_loader = new PageLoader (LOAD_OLDER, _rows.get (_rows.size () - 1).id);
+		_loader.execute ();
+	}
+
+	/*
+	 * Start loading the page before the first row, if it was dropped and
+	 * isn't already being loaded.
+	 */
+	private void
+	loadNewer () {
+		if (_loader != null || !_newer || _rows.isEmpty ())
+			return;
+
+		_loader = new PageLoader (LOAD_NEWER, _rows.get (0).id);
+		_loader.execute ();
+	}
+
+	/*
+	 * Read up to limit messages that match the filter, either newest
+	 * first with ids below the specified one, or oldest first with ids
+	 * above it. Returns null if they can't be read.
+	 */
+	private ArrayList<Row>
+	readPage (
+		String		senderKey,
+		String		query,
+		long		id,
+		boolean		newer,
+		int			limit
+	) {
+		Cursor		c = newer ? _database.pageAfter (senderKey, query, id, limit)
+								: _database.page (senderKey, query, id, limit);
+
+		if (c == null)
+			return null;
+
+		ArrayList<Row>	rows = new ArrayList<Row> (c.getCount ());
+
+		try {
+			while (c.moveToNext ()) {
+				Row			row = new Row ();
+
+				row.id = c.getLong (0);
+				row.phone = c.getString (1);
+				row.senderKey = c.getString (2);
+				row.message = c.getString (3);
+				rows.add (row);
+			}
+		} finally {
+			c.close ();
+		}
+
+		return rows;
+	}
+
+	/*
+	 * Return the number of rows loaded so far.
+	 */
+	@Override
+	public int
+	getCount () {
+		return _rows.size ();
+	}
+
+	/*
+	 * Return the message id of a row.
+	 */
+	@Override
+	public Object
+	getItem (
+		int			position
+	) {
+		return Long.valueOf (_rows.get (position).id);
+	}
+
+	/*
+	 * Return the message id of a row.
+	 */
+	@Override
+	public long
+	getItemId (
+		int			position
+	) {
+		return _rows.get (position).id;
+	}
+
+	/*
+	 * Return the sender key of a row.
+	 */
+	public String
+	getSenderKey (
+		int			position
+	) {
+		return _rows.get (position).senderKey;
+	}
+
+	/*
+	 * Rows keep their message id when pages are added.
+	 */
+	@Override
+	public boolean
+	hasStableIds () {
+		return true;
+	}
+
+	/*
+	 * Return the view of a row, showing the sender's contact name and the
+	 * message. Rows near the end request the next page.
+	 */
+	@Override
+	public View
+	getView (
+		int			position,
+		View		convertView,
+		ViewGroup	parent
+	) {
+		Row			row = _rows.get (position);
+		View		v = convertView;
+
+		if (v == null)
+			v = _inflater.inflate (android.R.layout.two_line_list_item,
+																parent, false);
+
+		((TextView) v.findViewById (android.R.id.text1)).setText (
+				Utility.getContactNameFromNumber (_context, row.phone));
+		((TextView) v.findViewById (android.R.id.text2)).setText (row.message);
+
+		if (position >= _rows.size () - PREFETCH_DISTANCE)
+			loadMore ();
+		else if (position < PREFETCH_DISTANCE)
+			loadNewer ();
+
+		return v;
+	}
+}
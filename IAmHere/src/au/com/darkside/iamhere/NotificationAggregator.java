@@ -0,0 +1,252 @@
+/*
+ * This class combines the notifications for received geo SMS.
+ *
+ * Messages arriving close together are collected for a short window,
+ * then shown as a single notification with a count for each sender.
+ * The notification is updated at most once per interval, however fast
+ * messages arrive. It links straight to the message when there is only
+ * one sender, otherwise to the list of received messages.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+public class NotificationAggregator {
+	private Context							_context;
+	private LinkedHashMap<String, Sender>	_senders;
+	private int								_total = 0;
+	private String							_latestBody = null;
+	private long							_pendingSince = 0;
+	private long							_lastPostTime = 0;
+
+	private static NotificationAggregator	_instance = null;
+
+	private static final int	NOTIFICATION_ID = 1;
+	private static final long	WINDOW = 3000;				// Milliseconds.
+	private static final long	MIN_INTERVAL = 15000;		// Milliseconds.
+
+	/*
+	 * The messages received from one sender since the user last looked.
+	 */
+	private static class Sender {
+		public String		phone;
+		public int			count;
+		public long			latestId;
+	}
+
+	/*
+	 * Return the aggregator, creating it if necessary.
+	 */
+	public static synchronized NotificationAggregator
+	getInstance (
+		Context		context
+	) {
+		if (_instance == null)
+			_instance = new NotificationAggregator (
+											context.getApplicationContext ());
+
+		return _instance;
+	}
+
+	/*
+	 * Constructor.
+	 */
+	private NotificationAggregator (
+		Context		context
+	) {
+		_context = context;
+		_senders = new LinkedHashMap<String, Sender> ();
+	}
+
+	/*
+	 * Record a newly saved message. It will be shown when the
+	 * notification is next posted.
+	 */
+	public synchronized void
+	add (
+		String		phone,
+		String		body,
+		long		id,
+		long		now
+	) {
+		String		key = PhoneNumbers.senderKey (_context, phone);
+		Sender		s = _senders.get (key);
+
+		if (s == null) {
+			s = new Sender ();
+			s.phone = phone;
+			_senders.put (key, s);
+		}
+
+		s.count++;
+		s.latestId = id;
+		_total++;
+		_latestBody = body;
+
+		if (_pendingSince == 0)
+			_pendingSince = now;
+	}
+
+	/*
+	 * Are there messages that haven't been posted yet?
+	 */
+	public synchronized boolean
+	hasPending () {
+		return (_pendingSince != 0);
+	}
+
+	/*
+	 * Return how many milliseconds until the notification should be
+	 * posted, or -1 if there is nothing to post.
+	 */
+	public synchronized long
+	timeUntilDue (
+		long		now
+	) {
+		if (_pendingSince == 0)
+			return -1;
+
+		long		due = Math.max (_pendingSince + WINDOW,
+											_lastPostTime + MIN_INTERVAL);
+
+		return Math.max (due - now, 0);
+	}
+
+	/*
+	 * Post the notification if it is due.
+	 */
+	public synchronized void
+	postIfDue (
+		long		now
+	) {
+		if (_pendingSince != 0 && timeUntilDue (now) == 0)
+			post (now);
+	}
+
+	/*
+	 * Post the notification now, if there is anything new.
+	 */
+	public synchronized void
+	flush () {
+		if (_pendingSince != 0)
+			post (System.currentTimeMillis ());
+	}
+
+	/*
+	 * Forget the messages and remove the notification.
+	 * Called when the user looks at the received messages.
+	 */
+	public synchronized void
+	clear () {
+		_senders.clear ();
+		_total = 0;
+		_latestBody = null;
+		_pendingSince = 0;
+
+		NotificationManager		nm;
+
+		nm = (NotificationManager) _context.getSystemService (
+											Context.NOTIFICATION_SERVICE);
+		nm.cancel (NOTIFICATION_ID);
+	}
+
+	/*
+	 * Build and post the notification.
+	 */
+	private void
+	post (
+		long		now
+	) {
+		Iterator<Sender>	it = _senders.values ().iterator ();
+		Sender				first = it.next ();
+		Intent				intent;
+		String				ticker;
+		String				title;
+		String				text;
+		int					requestCode;
+		int					unread;
+
+		if (_senders.size () == 1) {
+			title = Utility.getContactNameFromNumber (_context, first.phone);
+			text = (_total == 1) ? _latestBody : _total + " locations";
+			ticker = "Geo SMS from " + title;
+
+			intent = new Intent (_context, GetMeThere.class);
+			intent.putExtra (IAmHere.RECEIVED_SMS_ID, first.latestId);
+
+				// A distinct request code for each message, so an older
+				// pending intent isn't reused with the wrong message.
+			requestCode = (int) first.latestId;
+		} else {
+			StringBuilder	sb = new StringBuilder ();
+
+			appendSender (sb, first);
+			while (it.hasNext ()) {
+				sb.append (", ");
+				appendSender (sb, it.next ());
+			}
+
+			title = _total + " geo SMS";
+			text = sb.toString ();
+			ticker = title + " from " + text;
+			intent = new Intent (_context, ReceivedMessageViewer.class);
+			requestCode = -1;
+		}
+
+		PendingIntent	pi = PendingIntent.getActivity (_context, requestCode,
+									intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		Notification	n = new Notification (R.drawable.notify_geo_sms_icon,
+																ticker, now);
+
+		n.setLatestEventInfo (_context, title, text, pi);
+		n.flags |= Notification.FLAG_AUTO_CANCEL;
+
+			// The number on the icon is every message still unread, not
+			// just the ones since the notification was last cleared.
+		unread = Math.max (_total,
+							Database.getInstance (_context).getUnreadCount ());
+
+		if (unread > 1)
+			n.number = unread;
+
+			// Don't do any vibration or beeps - the regular SMS receiver
+			// will do that.
+		NotificationManager		nm;
+
+		nm = (NotificationManager) _context.getSystemService (
+											Context.NOTIFICATION_SERVICE);
+		nm.notify (NOTIFICATION_ID, n);
+
+		_pendingSince = 0;
+		_lastPostTime = now;
+	}
+
+	/*
+	 * Append a sender's name, and their message count if more than one.
+	 */
+	private void
+	appendSender (
+		StringBuilder	sb,
+		Sender			s
+	) {
+		sb.append (Utility.getContactNameFromNumber (_context, s.phone));
+		if (s.count > 1) {
+			sb.append (" (");
+			sb.append (s.count);
+			sb.append (')');
+		}
+	}
+}
@@ -0,0 +1,467 @@
+/*
+ * A reusable holder for the components of a parsed location.
+ * Text can be scanned for locations without allocating anything, and a
+ * Location is only built when one is actually needed.
+ *
+ * Components parsed from a geo URI are kept as slices of the source text,
+ * so parameters are only decoded when asked for, and the URI can be written
+ * back out exactly as it was received.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+import android.location.Location;
+
+public class ParsedLocation {
+	private CharSequence	_source;
+	private double			_latitude;
+	private double			_longitude;
+	private double			_altitude;
+	private float			_accuracy;
+	private boolean			_hasAltitude;
+	private boolean			_hasAccuracy;
+	private int				_numberStart[] = new int[4];
+	private int				_numberEnd[] = new int[4];
+	private int				_crsStart;
+	private int				_crsEnd;
+	private int				_parameterCount;
+	private int				_parameterStart[] = new int[4];
+	private int				_parameterNameEnd[] = new int[4];
+	private int				_parameterEnd[] = new int[4];
+
+	public static final int		LATITUDE = 0;
+	public static final int		LONGITUDE = 1;
+	public static final int		ALTITUDE = 2;
+	public static final int		ACCURACY = 3;
+
+	/*
+	 * Constructor.
+	 */
+	public ParsedLocation () {
+		clear ();
+	}
+
+	/*
+	 * Reset all the fields, ready for another parse.
+	 */
+	public void
+	clear () {
+		int			i;
+
+		_source = null;
+		_latitude = 0.0;
+		_longitude = 0.0;
+		_altitude = 0.0;
+		_accuracy = 0.0f;
+		_hasAltitude = false;
+		_hasAccuracy = false;
+		_crsStart = -1;
+		_crsEnd = -1;
+		_parameterCount = 0;
+
+		for (i = 0; i < _numberStart.length; i++) {
+			_numberStart[i] = -1;
+			_numberEnd[i] = -1;
+		}
+	}
+
+	/*
+	 * Reset all the fields, and remember the text that slices refer to.
+	 */
+	void
+	clear (
+		CharSequence	source
+	) {
+		clear ();
+		_source = source;
+	}
+
+	/*
+	 * Replace the contents with the values from a Location.
+	 */
+	public void
+	set (
+		final Location	loc
+	) {
+		clear ();
+		_latitude = loc.getLatitude ();
+		_longitude = loc.getLongitude ();
+
+		if (loc.hasAltitude ())
+			setAltitude (loc.getAltitude ());
+
+		if (loc.hasAccuracy ())
+			setAccuracy (loc.getAccuracy ());
+	}
+
+	/*
+	 * Return the latitude in degrees.
+	 */
+	public double
+	getLatitude () {
+		return _latitude;
+	}
+
+	/*
+	 * Return the longitude in degrees.
+	 */
+	public double
+	getLongitude () {
+		return _longitude;
+	}
+
+	/*
+	 * Does the location have an altitude?
+	 */
+	public boolean
+	hasAltitude () {
+		return _hasAltitude;
+	}
+
+	/*
+	 * Return the altitude in metres.
+	 */
+	public double
+	getAltitude () {
+		return _altitude;
+	}
+
+	/*
+	 * Does the location have an accuracy?
+	 */
+	public boolean
+	hasAccuracy () {
+		return _hasAccuracy;
+	}
+
+	/*
+	 * Return the accuracy in metres.
+	 */
+	public float
+	getAccuracy () {
+		return _accuracy;
+	}
+
+	/*
+	 * Set the latitude.
+	 */
+	void
+	setLatitude (
+		double		d
+	) {
+		_latitude = d;
+	}
+
+	/*
+	 * Set the longitude.
+	 */
+	void
+	setLongitude (
+		double		d
+	) {
+		_longitude = d;
+	}
+
+	/*
+	 * Set the altitude.
+	 */
+	void
+	setAltitude (
+		double		d
+	) {
+		_altitude = d;
+		_hasAltitude = true;
+	}
+
+	/*
+	 * Set the accuracy.
+	 */
+	void
+	setAccuracy (
+		float		f
+	) {
+		_accuracy = f;
+		_hasAccuracy = true;
+	}
+
+	/*
+	 * Set one of the numeric fields, recording where its text came from.
+	 */
+	void
+	setNumber (
+		int			field,
+		double		d,
+		int			start,
+		int			end
+	) {
+		switch (field) {
+			case LATITUDE:
+				setLatitude (d);
+				break;
+			case LONGITUDE:
+				setLongitude (d);
+				break;
+			case ALTITUDE:
+				setAltitude (d);
+				break;
+			default:
+				setAccuracy ((float) d);
+				break;
+		}
+
+		_numberStart[field] = start;
+		_numberEnd[field] = end;
+	}
+
+	/*
+	 * Was the numeric field parsed from text? If so, appendNumberText
+	 * will reproduce it exactly.
+	 */
+	boolean
+	hasNumberText (
+		int			field
+	) {
+		return (_source != null && _numberStart[field] >= 0);
+	}
+
+	/*
+	 * Append the original text of a numeric field to a string builder.
+	 */
+	void
+	appendNumberText (
+		StringBuilder	sb,
+		int				field
+	) {
+		sb.append (_source, _numberStart[field], _numberEnd[field]);
+	}
+
+	/*
+	 * Record the position of the coordinate reference system label.
+	 */
+	void
+	setCrs (
+		int			start,
+		int			end
+	) {
+		_crsStart = start;
+		_crsEnd = end;
+	}
+
+	/*
+	 * Was a coordinate reference system specified explicitly?
+	 */
+	public boolean
+	hasCrs () {
+		return (_crsStart >= 0);
+	}
+
+	/*
+	 * Return the coordinate reference system label, in lower case.
+	 */
+	public String
+	getCrs () {
+		if (_crsStart < 0)
+			return "wgs84";
+
+		return _source.subSequence (_crsStart, _crsEnd).toString ()
+															.toLowerCase ();
+	}
+
+	/*
+	 * Are the coordinates WGS-84 latitude and longitude?
+	 * Only those can be converted into a Location.
+	 */
+	public boolean
+	isWgs84 () {
+		return (_crsStart < 0 || regionEqualsIgnoreCase (_source, _crsStart,
+													_crsEnd, "wgs84"));
+	}
+
+	/*
+	 * Append the original text of the coordinate reference system label.
+	 */
+	void
+	appendCrsText (
+		StringBuilder	sb
+	) {
+		sb.append (_source, _crsStart, _crsEnd);
+	}
+
+	/*
+	 * Record a parameter. The name runs from start to nameEnd, and the
+	 * value, if any, from nameEnd + 1 to end.
+	 */
+	void
+	addParameter (
+		int			start,
+		int			nameEnd,
+		int			end
+	) {
+		if (_parameterCount == _parameterStart.length) {
+			int			n = _parameterCount * 2;
+
+			_parameterStart = grow (_parameterStart, n);
+			_parameterNameEnd = grow (_parameterNameEnd, n);
+			_parameterEnd = grow (_parameterEnd, n);
+		}
+
+		_parameterStart[_parameterCount] = start;
+		_parameterNameEnd[_parameterCount] = nameEnd;
+		_parameterEnd[_parameterCount] = end;
+		_parameterCount++;
+	}
+
+	/*
+	 * Return the number of parameters other than "crs" and "u".
+	 */
+	public int
+	getParameterCount () {
+		return _parameterCount;
+	}
+
+	/*
+	 * Return the name of a parameter, in lower case.
+	 */
+	public String
+	getParameterName (
+		int			i
+	) {
+		return _source.subSequence (_parameterStart[i], _parameterNameEnd[i])
+													.toString ().toLowerCase ();
+	}
+
+	/*
+	 * Return the index of the named parameter, or -1 if it isn't present.
+	 * Names are compared without regard to case, so the name must be
+	 * given in lower case.
+	 */
+	public int
+	indexOfParameter (
+		String		name
+	) {
+		int			i;
+
+		for (i = 0; i < _parameterCount; i++)
+			if (regionEqualsIgnoreCase (_source, _parameterStart[i],
+												_parameterNameEnd[i], name))
+				return i;
+
+		return -1;
+	}
+
+	/*
+	 * Return the percent-decoded value of a parameter, or null if it
+	 * doesn't have one.
+	 */
+	public String
+	getParameterValue (
+		int			i
+	) {
+		int			start = _parameterNameEnd[i] + 1;
+		int			end = _parameterEnd[i];
+
+		if (start > end)
+			return null;
+
+		ByteArrayOutputStream	bytes = new ByteArrayOutputStream (end - start);
+		int						j;
+
+		for (j = start; j < end; j++) {
+			char		c = _source.charAt (j);
+
+			if (c == '%') {
+				bytes.write ((Character.digit (_source.charAt (j + 1), 16) << 4)
+								| Character.digit (_source.charAt (j + 2), 16));
+				j += 2;
+			} else
+				bytes.write (c);
+		}
+
+		try {
+			return bytes.toString ("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return bytes.toString ();
+		}
+	}
+
+	/*
+	 * Append the original text of a parameter, including its name and
+	 * any value, to a string builder.
+	 */
+	void
+	appendParameterText (
+		StringBuilder	sb,
+		int				i
+	) {
+		sb.append (_source, _parameterStart[i], _parameterEnd[i]);
+	}
+
+	/*
+	 * Return the contents as a newly-allocated Location, or null if the
+	 * coordinates aren't WGS-84.
+	 */
+	public Location
+	toLocation () {
+		if (!isWgs84 ())
+			return null;
+
+		Location	loc = new Location ("GeoUri");
+
+		loc.setLatitude (_latitude);
+		loc.setLongitude (_longitude);
+
+		if (_hasAltitude)
+			loc.setAltitude (_altitude);
+
+		if (_hasAccuracy)
+			loc.setAccuracy (_accuracy);
+
+		return loc;
+	}
+
+	/*
+	 * Does the region of text match the lower-case string, ignoring case?
+	 */
+	static boolean
+	regionEqualsIgnoreCase (
+		final CharSequence	s,
+		final int			start,
+		final int			end,
+		final String		lower
+	) {
+		int			n = lower.length ();
+		int			i;
+
+		if (end - start != n)
+			return false;
+
+		for (i = 0; i < n; i++)
+			if (Character.toLowerCase (s.charAt (start + i)) != lower.charAt (i))
+				return false;
+
+		return true;
+	}
+
+	/*
+	 * Return a copy of the array with a new length.
+	 */
+	private static int[]
+	grow (
+		int			a[],
+		int			n
+	) {
+		int			b[] = new int[n];
+
+		System.arraycopy (a, 0, b, 0, a.length);
+
+		return b;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Functions for turning phone numbers into canonical sender keys, so the
+ * same person is recognised however their number was written.
+ *
+ * Numbers are converted to an E.164-style "+<country><number>" form,
+ * using the SIM's country for national numbers. Alphanumeric senders
+ * are lower-cased, and short codes are kept as their digits.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import android.content.Context;
+import android.telephony.TelephonyManager;
+
+public class PhoneNumbers {
+	private static String		_countryCode = null;
+
+	private static final int	MAX_SHORT_CODE_LENGTH = 6;
+
+		// ISO country and calling code pairs, for national numbers.
+	private static final String	CALLING_CODES[] = {
+		"ar", "54", "at", "43", "au", "61", "be", "32", "br", "55",
+		"ca", "1", "ch", "41", "cl", "56", "cn", "86", "cz", "420",
+		"de", "49", "dk", "45", "eg", "20", "es", "34", "fi", "358",
+		"fr", "33", "gb", "44", "gr", "30", "hk", "852", "hu", "36",
+		"id", "62", "ie", "353", "il", "972", "in", "91", "it", "39",
+		"jp", "81", "kr", "82", "mx", "52", "my", "60", "nl", "31",
+		"no", "47", "nz", "64", "ph", "63", "pl", "48", "pt", "351",
+		"ro", "40", "ru", "7", "sa", "966", "se", "46", "sg", "65",
+		"th", "66", "tr", "90", "tw", "886", "ua", "380", "us", "1",
+		"vn", "84", "za", "27"
+	};
+
+	/*
+	 * Return the sender key for a number, using the SIM's country for
+	 * national numbers.
+	 */
+	public static String
+	senderKey (
+		Context		context,
+		String		number
+	) {
+		return senderKey (number, getCountryCode (context));
+	}
+
+	/*
+	 * Return the sender key for a number. The country calling code is
+	 * used for national numbers, and may be null if it isn't known.
+	 */
+	public static String
+	senderKey (
+		String		number,
+		String		countryCode
+	) {
+		if (number == null)
+			return "";
+
+		StringBuilder	digits = new StringBuilder (number.length () + 4);
+		boolean			plus = false;
+		int				i;
+
+		for (i = 0; i < number.length (); i++) {
+			char		c = number.charAt (i);
+
+			if (c >= '0' && c <= '9')
+				digits.append (c);
+			else if (c == '+' && digits.length () == 0)
+				plus = true;
+			else if (Character.isLetter (c))	// Alphanumeric sender.
+				return number.trim ().toLowerCase ();
+		}
+
+		String		s = digits.toString ();
+
+		if (plus)
+			return "+" + s;
+		else if (s.length () <= MAX_SHORT_CODE_LENGTH)
+			return s;
+		else if ("1".equals (countryCode)) {	// North American numbering.
+			if (s.startsWith ("011"))
+				return "+" + s.substring (3);
+			else if (s.length () == 11 && s.charAt (0) == '1')
+				return "+" + s;
+			else if (s.length () == 10)
+				return "+1" + s;
+			else
+				return s;
+		} else if (s.startsWith ("00"))			// International prefix.
+			return "+" + s.substring (2);
+		else if (s.charAt (0) == '0' && countryCode != null)	// Trunk prefix.
+			return "+" + countryCode + s.substring (1);
+		else
+			return s;
+	}
+
+	/*
+	 * Return the calling code of the SIM's country, or null if it isn't
+	 * known.
+	 */
+	public static synchronized String
+	getCountryCode (
+		Context		context
+	) {
+		if (_countryCode == null) {
+			TelephonyManager	tm = (TelephonyManager) context.getSystemService (
+													Context.TELEPHONY_SERVICE);
+			String				iso = (tm == null) ? null
+												: tm.getSimCountryIso ();
+
+			if (iso == null || iso.length () == 0)
+				return null;		// No SIM yet, so try again later.
+
+			_countryCode = callingCode (iso.toLowerCase ());
+			if (_countryCode == null)
+				_countryCode = "";
+		}
+
+		return (_countryCode.length () == 0) ? null : _countryCode;
+	}
+
+	/*
+	 * Return the calling code for an ISO country code, or null.
+	 */
+	private static String
+	callingCode (
+		String		iso
+	) {
+		int			i;
+
+		for (i = 0; i < CALLING_CODES.length; i += 2)
+			if (CALLING_CODES[i].equals (iso))
+				return CALLING_CODES[i + 1];
+
+		return null;
+	}
+}
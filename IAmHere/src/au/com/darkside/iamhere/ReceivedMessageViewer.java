@@ -1,6 +1,7 @@
 /*
  * This activity displays all the received messages in a scrolling list,
- * where they can be viewed or deleted.
+ * where they can be viewed or deleted. The list can be narrowed down to
+ * the messages from one sender, and searched as the user types.
  *
  * Written by Matthew Kwan - August 2010
  *
@@ -12,26 +13,65 @@
  */
 package au.com.darkside.iamhere;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ListActivity;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
-import android.widget.ListAdapter;
-import android.widget.SimpleCursorAdapter;
+import android.widget.EditText;
+import android.widget.Toast;
 import android.widget.AdapterView.OnItemClickListener;
 
 public class ReceivedMessageViewer extends ListActivity
 										implements OnItemClickListener {
-	private Database	_database = null;
-	private Cursor		_cursor = null;
-	private long		_selectedMessageId = -1;
+	private Database			_database = null;
+	private MessageListAdapter	_adapter = null;
+	private long				_selectedMessageId = -1;
+	private String				_selectedSenderKey = null;
+	private String				_senderKey = null;
+	private String				_query = null;
+	private EditText			_searchEditor = null;
+	private Handler				_handler = new Handler ();
 
 	private final static int	DIALOG_MESSAGE_SELECTED = 1;
+	private final static int	DIALOG_DELETE_SHOWN = 2;
+	private final static int	DIALOG_EXPORT = 3;
+	private final static int	DIALOG_IMPORT = 4;
+	private final static int	MENU_MARK_READ = 1;
+	private final static int	MENU_DELETE_SHOWN = 2;
+	private final static int	MENU_EXPORT = 3;
+	private final static int	MENU_IMPORT = 4;
+
+		// How long typing has to pause before the list is searched.
+	private final static long	SEARCH_DELAY = 300;
+
+	private final Runnable		_searchRunnable = new Runnable () {
+		public void run () {
+			search ();
+		}
+	};
+
+		// Refreshes the list once a change has been committed.
+	private final DatabaseWriter.Callback<Boolean>	_refreshCallback =
+									new DatabaseWriter.Callback<Boolean> () {
+		public void done (Boolean ok) {
+			if (ok != null && ok.booleanValue ())
+				refresh ();
+		}
+	};
 
     /*
      * Called when the activity is first created.
@@ -45,6 +85,34 @@ public class ReceivedMessageViewer extends ListActivity
         setContentView (R.layout.received_message_viewer);
 
         getListView ().setOnItemClickListener (this);
+        _database = Database.getInstance (this);
+        _adapter = new MessageListAdapter (this, getListView ());
+
+        _searchEditor = (EditText) findViewById (R.id.search_editor);
+        _searchEditor.addTextChangedListener (
+        	new TextWatcher () {
+        		public void afterTextChanged (Editable s) {
+        			_handler.removeCallbacks (_searchRunnable);
+        			_handler.postDelayed (_searchRunnable, SEARCH_DELAY);
+        		}
+        		public void beforeTextChanged (CharSequence s, int start,
+        										int count, int after) {
+        		}
+        		public void onTextChanged (CharSequence s, int start,
+        										int before, int count) {
+        		}
+        	}
+        );
+    }
+
+    /*
+     * Called when the activity is destroyed.
+     */
+    @Override
+    public void
+    onDestroy () {
+    	super.onDestroy ();
+    	_handler.removeCallbacks (_searchRunnable);
     }
 
     /*
@@ -55,40 +123,79 @@ public class ReceivedMessageViewer extends ListActivity
     onResume () {
     	super.onResume ();
 
-    	_database = new Database (this);
-        if (_database.open ())
-        	populate ();
-        else
-        	_database = null;
+    	NotificationAggregator.getInstance (this).clear ();
+
+    		// The loaded rows are kept while paused, so just refresh them.
+    	if (getListAdapter () == null)
+    		populate ();
+    	else
+    		refresh ();
     }
 
     /*
-     * Called when the activity pauses.
+     * Populate the list, with all the messages or just those from the
+     * current sender, that match the current search.
      */
-    @Override
-    public void
-    onPause () {
-    	super.onPause ();
+    private void
+    populate () {
+    	_adapter.setFilter (_senderKey, _query);
+    	if (getListAdapter () == null)
+    		setListAdapter (_adapter);
 
-    	if (_database != null) {
-    		_database.close ();
-    		_database = null;
-    	}
+    	showUnreadCount ();
     }
 
     /*
-     * Populate the list.
+     * Reload the list after the messages have changed.
      */
     private void
-    populate () {
-       	if ((_cursor = _database.cursor ()) != null) {
-        	ListAdapter		adapter = new SimpleCursorAdapter (this,
-        						android.R.layout.two_line_list_item, _cursor,
-        						new String[] { "phone", "message" },
-        						new int[] { android.R.id.text1, android.R.id.text2 });
+    refresh () {
+    	_adapter.refresh ();
+    	showUnreadCount ();
+    }
 
-        	setListAdapter (adapter);
-       	}
+    /*
+     * Show how many messages haven't been read in the title. The count is
+     * kept by the database, so this doesn't have to count the messages.
+     */
+    private void
+    showUnreadCount () {
+    	int			unread = _database.getUnreadCount ();
+
+    	if (unread > 0)
+    		setTitle ("Received messages (" + unread + " unread)");
+    	else
+    		setTitle ("Received messages");
+    }
+
+    /*
+     * Show only the messages from the selected message's sender, or all
+     * the messages if the key is null.
+     */
+    private void
+    filterBySender (
+    	String		senderKey
+    ) {
+    	_senderKey = senderKey;
+    	populate ();
+    }
+
+    /*
+     * Search the messages for the text in the search box, if it has
+     * changed since the last search.
+     */
+    private void
+    search () {
+    	String		query = _searchEditor.getText ().toString ().trim ();
+
+    	if (query.length () == 0)
+    		query = null;
+
+    	if (query == null ? _query == null : query.equals (_query))
+    		return;
+
+    	_query = query;
+    	populate ();
     }
 
     /*
@@ -96,14 +203,57 @@ public class ReceivedMessageViewer extends ListActivity
      */
     private void
     deleteSelectedMessage () {
-    	if (_selectedMessageId < 0 || _database == null)
+    	if (_selectedMessageId < 0)
     		return;
 
-       	if (_database.deleteMessage (_selectedMessageId)) {
-       		_selectedMessageId = -1;
-       		if (_cursor != null)
-       			_cursor.requery ();
-        }
+    	long		ids[] = {_selectedMessageId};
+
+       	DatabaseWriter.getInstance (this).deleteMessages (ids,
+       												removeCallback (ids));
+       	_selectedMessageId = -1;
+    }
+
+    /*
+     * Return a callback that removes deleted messages from the list once
+     * they have been committed, then refreshes it.
+     */
+    private DatabaseWriter.Callback<Boolean>
+    removeCallback (
+    	final long	ids[]
+    ) {
+    	return new DatabaseWriter.Callback<Boolean> () {
+    		public void done (Boolean ok) {
+    			if (ok != null && ok.booleanValue ()) {
+    				_adapter.remove (ids);
+    				refresh ();
+    			}
+    		}
+    	};
+    }
+
+    /*
+     * Flag all the messages in the list as read.
+     */
+    private void
+    markShownAsRead () {
+    	DatabaseWriter.getInstance (this).flagAsRead (_senderKey, _query,
+    														_refreshCallback);
+    }
+
+    /*
+     * Delete all the messages in the list, then load it again from the
+     * start.
+     */
+    private void
+    deleteShownMessages () {
+    	DatabaseWriter.getInstance (this).deleteMessages (_senderKey, _query,
+    								new DatabaseWriter.Callback<Boolean> () {
+    		public void done (Boolean ok) {
+    			if (ok != null && ok.booleanValue ())
+    				populate ();
+    		}
+    	});
+    	_selectedMessageId = -1;
     }
 
     /*
@@ -130,12 +280,42 @@ public class ReceivedMessageViewer extends ListActivity
     ) {
     	AlertDialog.Builder		builder = new AlertDialog.Builder (this);
 
-    	builder.setMessage ("Do you wish to view the message or delete it?")
+    	if (id == DIALOG_DELETE_SHOWN) {
+    		builder.setMessage ("Do you wish to delete all the messages "
+    							+ "in the list?")
+    			.setPositiveButton ("Delete", new DialogInterface.OnClickListener () {
+    				public void onClick (DialogInterface dialog, int id) {
+    					deleteShownMessages ();
+    				}
+    			})
+    			.setNegativeButton ("Cancel", null);
+
+    		return builder.create ();
+    	} else if (id == DIALOG_EXPORT || id == DIALOG_IMPORT) {
+    		final boolean	export = (id == DIALOG_EXPORT);
+
+    		builder.setTitle (export ? "Export messages as" : "Import messages from")
+    			.setItems (MessageArchive.FORMAT_NAMES, new DialogInterface.OnClickListener () {
+    				public void onClick (DialogInterface dialog, int item) {
+    					new ArchiveTask (export, item).execute ();
+    				}
+    			});
+
+    		return builder.create ();
+    	}
+
+    	builder.setMessage ("Do you wish to view the message, see all the "
+    						+ "messages from its sender, or delete it?")
     		.setPositiveButton ("View", new DialogInterface.OnClickListener () {
     			public void onClick (DialogInterface dialog, int id) {
     				viewSelectedMessage ();
     			}
     		})
+    		.setNeutralButton ("Sender", new DialogInterface.OnClickListener () {
+    			public void onClick (DialogInterface dialog, int id) {
+    				filterBySender (_selectedSenderKey);
+    			}
+    		})
     		.setNegativeButton ("Delete", new DialogInterface.OnClickListener () {
     			public void onClick (DialogInterface dialog, int id) {
     				deleteSelectedMessage ();
@@ -156,11 +336,138 @@ public class ReceivedMessageViewer extends ListActivity
     	int				position,
     	long			id
     ) {
-    	final Cursor	c = (Cursor) parent.getItemAtPosition (position);
+    	_selectedMessageId = id;
+    	_selectedSenderKey = _adapter.getSenderKey (position);
+    	showDialog (DIALOG_MESSAGE_SELECTED);
+    }
+
+    /*
+     * Exports or imports the messages in the background, then reports
+     * the result.
+     */
+    private class ArchiveTask extends AsyncTask<Void, Void, String> {
+    	private boolean		_export;
+    	private int			_format;
+
+    	/*
+    	 * Constructor.
+    	 */
+    	public ArchiveTask (
+    		boolean		export,
+    		int			format
+    	) {
+    		_export = export;
+    		_format = format;
+    	}
+
+    	/*
+    	 * Copy the messages, off the UI thread.
+    	 */
+    	@Override
+    	protected String
+    	doInBackground (
+    		Void...		params
+    	) {
+    		MessageArchive	archive = new MessageArchive (
+    												ReceivedMessageViewer.this);
+    		File			file = MessageArchive.getFile (_format);
+
+    		try {
+    			if (_export)
+    				return "Exported " + archive.exportTo (_format, file)
+    												+ " entries to " + file;
+    			else
+    				return "Imported " + archive.importFrom (_format, file)
+    												+ " messages from " + file;
+    		} catch (IOException e) {
+    			return (_export ? "Export" : "Import") + " failed: "
+    														+ e.getMessage ();
+    		}
+    	}
+
+    	/*
+    	 * Show the result, and the imported messages.
+    	 */
+    	@Override
+    	protected void
+    	onPostExecute (
+    		String		result
+    	) {
+    		Toast.makeText (ReceivedMessageViewer.this, result,
+    											Toast.LENGTH_LONG).show ();
+    		if (!_export)
+    			refresh ();
+    	}
+    }
+
+    /*
+     * Called when a menu is needed.
+     */
+    @Override
+    public boolean
+    onCreateOptionsMenu (
+    	Menu		menu
+    ) {
+    	MenuItem	item;
+
+    	item = menu.add (0, MENU_MARK_READ, 0, "Mark all read");
+    	item.setIcon (android.R.drawable.ic_menu_view);
+
+    	item = menu.add (0, MENU_DELETE_SHOWN, 0, "Delete all");
+    	item.setIcon (android.R.drawable.ic_menu_delete);
 
-    	if (c != null) {
-    		_selectedMessageId = c.getLong (c.getColumnIndex ("_id"));
-    		showDialog (DIALOG_MESSAGE_SELECTED);
+    	item = menu.add (0, MENU_EXPORT, 0, "Export");
+    	item.setIcon (android.R.drawable.ic_menu_save);
+
+    	item = menu.add (0, MENU_IMPORT, 0, "Import");
+    	item.setIcon (android.R.drawable.ic_menu_upload);
+
+        return true;
+    }
+
+    /*
+     * Called when a menu selection has been made.
+     */
+    @Override
+    public boolean
+    onOptionsItemSelected (
+    	MenuItem	item
+    ) {
+    	super.onOptionsItemSelected (item);
+
+    	switch (item.getItemId ()) {
+    		case MENU_MARK_READ:
+    			markShownAsRead ();
+    			return true;
+    		case MENU_DELETE_SHOWN:
+    			showDialog (DIALOG_DELETE_SHOWN);
+    			return true;
+    		case MENU_EXPORT:
+    			showDialog (DIALOG_EXPORT);
+    			return true;
+    		case MENU_IMPORT:
+    			showDialog (DIALOG_IMPORT);
+    			return true;
+    	}
+
+    	return false;
+    }
+
+    /*
+     * Called when a key is pressed. Back shows all the messages again
+     * if they are being filtered by sender.
+     */
+    @Override
+    public boolean
+    onKeyDown (
+    	int			keyCode,
+    	KeyEvent	event
+    ) {
+    	if (keyCode == KeyEvent.KEYCODE_BACK && _senderKey != null) {
+    		filterBySender (null);
+    		return true;
     	}
+
+    	return super.onKeyDown (keyCode, event);
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * This service deletes old received messages, according to the retention
+ * level chosen by the user, then compacts the database if enough of it
+ * is free space.
+ *
+ * It runs once a day from an alarm that doesn't wake the device, so it
+ * only runs when the phone is already in use. Messages are deleted in
+ * small batches, to avoid holding up the receiver. The database file is
+ * only compacted while the phone is charging.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+public class RetentionService extends IntentService {
+	public static final int		LEVEL_KEEP_ALL = 0;
+	public static final int		LEVEL_YEAR = 1;
+	public static final int		LEVEL_QUARTER = 2;
+	public static final int		LEVEL_MONTH = 3;
+
+		// For each level, the maximum age of a message in days, the most
+		// messages kept from one sender, and the most kept from one sender
+		// that are only positions, with no text, as sent automatically.
+		// Zero means no limit.
+	private static final int	MAX_AGE_DAYS[] = {0, 365, 91, 30};
+	private static final int	MAX_PER_SENDER[] = {0, 1000, 500, 200};
+	private static final int	MAX_POSITIONS[] = {0, 200, 100, 50};
+
+	private static final long	MILLISECONDS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	/*
+	 * Constructor.
+	 */
+	public RetentionService () {
+		super ("RetentionService");
+	}
+
+	/*
+	 * Make sure the daily alarm is set. It is forgotten when the phone
+	 * restarts, so this is called whenever the app or the receiver starts.
+	 */
+	public static void
+	schedule (
+		Context		context
+	) {
+		Intent		intent = new Intent (context, RetentionService.class);
+
+		if (PendingIntent.getService (context, 0, intent,
+									PendingIntent.FLAG_NO_CREATE) != null)
+			return;
+
+		AlarmManager	am = (AlarmManager) context.getSystemService (
+													Context.ALARM_SERVICE);
+		PendingIntent	pi = PendingIntent.getService (context, 0, intent, 0);
+
+		am.setInexactRepeating (AlarmManager.RTC,
+						System.currentTimeMillis () + AlarmManager.INTERVAL_HOUR,
+						AlarmManager.INTERVAL_DAY, pi);
+	}
+
+	/*
+	 * Apply the retention level now, rather than waiting for the alarm.
+	 */
+	public static void
+	runNow (
+		Context		context
+	) {
+		context.startService (new Intent (context, RetentionService.class));
+	}
+
+	/*
+	 * Delete the messages that are no longer kept, then compact the
+	 * database. Called on the service's worker thread.
+	 */
+	@Override
+	protected void
+	onHandleIntent (
+		Intent		intent
+	) {
+		Database	db = Database.getInstance (this);
+		int			level = getLevel (this);
+		int			deleted = 0;
+
+		if (MAX_AGE_DAYS[level] > 0)
+			deleted += db.deleteOlderThan (System.currentTimeMillis ()
+								- MAX_AGE_DAYS[level] * MILLISECONDS_PER_DAY);
+
+		if (MAX_PER_SENDER[level] > 0)
+			deleted += db.trimSenders (MAX_PER_SENDER[level], false);
+
+		if (MAX_POSITIONS[level] > 0)
+			deleted += db.trimSenders (MAX_POSITIONS[level], true);
+
+		if (deleted > 0)
+			Log.i ("IAmHere", "Retention deleted " + deleted + " messages");
+
+		if (isCharging ())
+			DatabaseWriter.getInstance (this).compact ();
+	}
+
+	/*
+	 * Is the phone plugged in?
+	 */
+	private boolean
+	isCharging () {
+		Intent		battery = registerReceiver (null,
+						new IntentFilter (Intent.ACTION_BATTERY_CHANGED));
+
+		return (battery != null && battery.getIntExtra ("plugged", 0) != 0);
+	}
+
+	/*
+	 * Return the current level, one of the LEVEL_ constants.
+	 */
+	public static int
+	getLevel (
+		Context		context
+	) {
+		SharedPreferences	prefs = context.getSharedPreferences (
+										"IAmHerePrefs", Context.MODE_PRIVATE);
+		int					level = prefs.getInt ("retention_level",
+																LEVEL_KEEP_ALL);
+
+		return (level < LEVEL_KEEP_ALL || level > LEVEL_MONTH) ? LEVEL_KEEP_ALL
+																	: level;
+	}
+
+	/*
+	 * Change the level.
+	 */
+	public static void
+	setLevel (
+		Context		context,
+		int			level
+	) {
+		SharedPreferences.Editor	editor = context.getSharedPreferences (
+								"IAmHerePrefs", Context.MODE_PRIVATE).edit ();
+
+		editor.putInt ("retention_level", level);
+		editor.commit ();
+	}
+}
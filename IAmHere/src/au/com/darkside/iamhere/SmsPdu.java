@@ -0,0 +1,269 @@
+/*
+ * A reusable parser for the header fields of a raw SMS-DELIVER PDU.
+ *
+ * SmsMessage decodes the text, but doesn't make the user data header
+ * public, so the concatenation details of multi-part messages are read
+ * here directly from the PDU bytes (3GPP TS 23.040).
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+public class SmsPdu {
+	private byte		_pdu[];
+	private int			_encoding;
+	private int			_userDataStart;
+	private int			_userDataLength;
+	private int			_headerLength;
+	private int			_reference;
+	private int			_partCount;
+	private int			_partNumber;
+
+	public static final int		ENCODING_UNKNOWN = 0;
+	public static final int		ENCODING_7BIT = 1;
+	public static final int		ENCODING_8BIT = 2;
+	public static final int		ENCODING_16BIT = 3;
+
+	private static final int	MTI_DELIVER = 0;
+	private static final int	TIMESTAMP_LENGTH = 7;
+	private static final int	IEI_CONCATENATED_8BIT = 0x00;
+	private static final int	IEI_CONCATENATED_16BIT = 0x08;
+
+	/*
+	 * Constructor.
+	 */
+	public SmsPdu () {
+		clear ();
+	}
+
+	/*
+	 * Reset all the fields.
+	 */
+	public void
+	clear () {
+		_pdu = null;
+		_encoding = ENCODING_UNKNOWN;
+		_userDataStart = 0;
+		_userDataLength = 0;
+		_headerLength = 0;
+		_reference = -1;
+		_partCount = 1;
+		_partNumber = 1;
+	}
+
+	/*
+	 * Parse a PDU as delivered in the "pdus" extra of an SMS broadcast.
+	 * Returns false if it isn't a well-formed SMS-DELIVER PDU.
+	 */
+	public boolean
+	parse (
+		byte		pdu[]
+	) {
+		int			n = pdu.length;
+		int			pos;
+
+		clear ();
+
+		if (n < 1)
+			return false;
+
+		pos = 1 + (pdu[0] & 0xff);		// Skip the service centre address.
+		if (pos >= n)
+			return false;
+
+		int			firstOctet = pdu[pos++] & 0xff;
+		boolean		hasHeader = (firstOctet & 0x40) != 0;
+
+		if ((firstOctet & 0x03) != MTI_DELIVER || pos >= n)
+			return false;
+
+			// The originating address length is in digits.
+		pos += 2 + ((pdu[pos] & 0xff) + 1) / 2;
+
+			// Protocol identifier, then data coding scheme.
+		if (pos + 2 >= n)
+			return false;
+
+		_encoding = encodingFromDcs (pdu[pos + 1] & 0xff);
+		pos += 2 + TIMESTAMP_LENGTH;
+		if (pos >= n)
+			return false;
+
+		_userDataLength = pdu[pos++] & 0xff;
+		_userDataStart = pos;
+		_pdu = pdu;
+
+		if (hasHeader) {
+			if (pos >= n)
+				return false;
+
+			_headerLength = (pdu[pos] & 0xff) + 1;
+			if (pos + _headerLength > n)
+				return false;
+
+			parseHeader (pdu, pos + 1, pos + _headerLength);
+		}
+
+		return true;
+	}
+
+	/*
+	 * Return the encoding of the user data, one of the ENCODING_ constants.
+	 */
+	public int
+	getEncoding () {
+		return _encoding;
+	}
+
+	/*
+	 * Is this one part of a concatenated message?
+	 */
+	public boolean
+	isConcatenated () {
+		return (_reference >= 0);
+	}
+
+	/*
+	 * Return the reference number shared by all parts of a concatenated
+	 * message.
+	 */
+	public int
+	getReference () {
+		return _reference;
+	}
+
+	/*
+	 * Return the number of parts in the concatenated message.
+	 */
+	public int
+	getPartCount () {
+		return _partCount;
+	}
+
+	/*
+	 * Return the position of this part, starting from one.
+	 */
+	public int
+	getPartNumber () {
+		return _partNumber;
+	}
+
+	/*
+	 * Return the PDU that was parsed.
+	 */
+	byte[]
+	getPdu () {
+		return _pdu;
+	}
+
+	/*
+	 * Return the offset of the user data, including any header, in the PDU.
+	 */
+	int
+	getUserDataStart () {
+		return _userDataStart;
+	}
+
+	/*
+	 * Return the length of the user data, including any header, in septets
+	 * for 7-bit data and octets otherwise.
+	 */
+	int
+	getUserDataLength () {
+		return _userDataLength;
+	}
+
+	/*
+	 * Return the length of the user data header in octets, including its
+	 * length octet, or zero if there isn't one.
+	 */
+	int
+	getHeaderLength () {
+		return _headerLength;
+	}
+
+	/*
+	 * Look through the information elements of the user data header for
+	 * the concatenation details.
+	 */
+	private void
+	parseHeader (
+		byte		pdu[],
+		int			pos,
+		int			end
+	) {
+		while (pos + 2 <= end) {
+			int			iei = pdu[pos] & 0xff;
+			int			length = pdu[pos + 1] & 0xff;
+			int			data = pos + 2;
+
+			if (data + length > end)
+				break;
+
+			if (iei == IEI_CONCATENATED_8BIT && length == 3)
+				setConcatenation (pdu[data] & 0xff, pdu[data + 1] & 0xff,
+														pdu[data + 2] & 0xff);
+			else if (iei == IEI_CONCATENATED_16BIT && length == 4)
+				setConcatenation (((pdu[data] & 0xff) << 8)
+									| (pdu[data + 1] & 0xff),
+									pdu[data + 2] & 0xff, pdu[data + 3] & 0xff);
+
+			pos = data + length;
+		}
+	}
+
+	/*
+	 * Record the concatenation details, if they are valid.
+	 */
+	private void
+	setConcatenation (
+		int			reference,
+		int			count,
+		int			number
+	) {
+		if (count < 2 || number < 1 || number > count)
+			return;
+
+		_reference = reference;
+		_partCount = count;
+		_partNumber = number;
+	}
+
+	/*
+	 * Work out the user data encoding from the data coding scheme.
+	 */
+	private static int
+	encodingFromDcs (
+		int			dcs
+	) {
+		switch (dcs >> 4) {
+			case 0x0: case 0x1: case 0x2: case 0x3:
+			case 0x4: case 0x5: case 0x6: case 0x7:
+				if ((dcs & 0x20) != 0)		// Compressed.
+					return ENCODING_UNKNOWN;
+
+				switch ((dcs >> 2) & 0x03) {
+					case 0:
+						return ENCODING_7BIT;
+					case 1:
+						return ENCODING_8BIT;
+					case 2:
+						return ENCODING_16BIT;
+					default:
+						return ENCODING_UNKNOWN;
+				}
+			case 0xc: case 0xd:
+				return ENCODING_7BIT;
+			case 0xe:
+				return ENCODING_16BIT;
+			case 0xf:
+				return ((dcs & 0x04) != 0) ? ENCODING_8BIT : ENCODING_7BIT;
+			default:
+				return ENCODING_UNKNOWN;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * A quick check of the raw user data of an SMS PDU, which rules out
+ * messages that can't contain a location before any Strings are built.
+ *
+ * The 7-bit or UCS-2 characters are fed straight from the PDU bytes
+ * through the same marker automaton that LocationRecognizer uses, along
+ * with simple checks for decimal coordinates and degree signs. A message
+ * that passes may still turn out not to contain a location, but one that
+ * fails certainly doesn't.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+public class SmsPrefilter {
+	private int			_markerState;
+	private int			_numberState;
+	private int			_fractionDigits;
+
+	private static final int	NUMBER_NONE = 0;
+	private static final int	NUMBER_INTEGER = 1;
+	private static final int	NUMBER_FRACTION = 2;
+
+	private static final int	GSM_AT_SIGN = 0x00;
+	private static final int	GSM_ESCAPE = 0x1b;
+
+	/*
+	 * Could the message in the parsed PDU contain a location?
+	 * Anything that can't be checked is let through.
+	 */
+	public boolean
+	mayContainLocation (
+		final SmsPdu	pdu
+	) {
+		_markerState = 0;
+		_numberState = NUMBER_NONE;
+		_fractionDigits = 0;
+
+		switch (pdu.getEncoding ()) {
+			case SmsPdu.ENCODING_7BIT:
+				return scan7Bit (pdu);
+			case SmsPdu.ENCODING_16BIT:
+				return scan16Bit (pdu);
+			case SmsPdu.ENCODING_8BIT:
+				return false;		// Binary data, not text.
+			default:
+				return true;
+		}
+	}
+
+	/*
+	 * Check user data packed as GSM 7-bit septets.
+	 */
+	private boolean
+	scan7Bit (
+		final SmsPdu	pdu
+	) {
+		byte		b[] = pdu.getPdu ();
+		int			start = pdu.getUserDataStart ();
+		int			count = pdu.getUserDataLength ();
+		int			i;
+
+			// The header is padded out to a septet boundary.
+		i = (pdu.getHeaderLength () * 8 + 6) / 7;
+
+		for (; i < count; i++) {
+			int			bit = i * 7;
+			int			pos = start + (bit >> 3);
+			int			shift = bit & 7;
+			int			septet;
+
+			if (pos >= b.length)
+				break;
+
+			septet = (b[pos] & 0xff) >> shift;
+			if (shift > 1 && pos + 1 < b.length)
+				septet |= b[pos + 1] << (8 - shift);
+			septet &= 0x7f;
+
+				// Outside the extension table, the characters that matter
+				// all have their ASCII values, except for '@'.
+			if (septet == GSM_ESCAPE)
+				i++;		// Extension characters can't be part of a location.
+			else if (septet == GSM_AT_SIGN)
+				septet = '@';
+
+			if (feed ((char) septet))
+				return true;
+		}
+
+		return false;
+	}
+
+	/*
+	 * Check user data encoded as big-endian UCS-2.
+	 */
+	private boolean
+	scan16Bit (
+		final SmsPdu	pdu
+	) {
+		byte		b[] = pdu.getPdu ();
+		int			start = pdu.getUserDataStart ();
+		int			end = Math.min (start + pdu.getUserDataLength (), b.length);
+		int			pos;
+
+		for (pos = start + pdu.getHeaderLength (); pos + 1 < end; pos += 2)
+			if (feed ((char) (((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff))))
+				return true;
+
+		return false;
+	}
+
+	/*
+	 * Process the next character. Returns true as soon as it looks as if
+	 * there might be a location.
+	 */
+	private boolean
+	feed (
+		char		c
+	) {
+		_markerState = LocationRecognizer.nextMarkerState (_markerState, c);
+		if (LocationRecognizer.isMarkerState (_markerState))
+			return true;
+
+		if (LocationRecognizer.isDegreeSign (c))
+			return true;
+
+		if (c >= '0' && c <= '9') {
+			if (_numberState == NUMBER_FRACTION) {
+				if (++_fractionDigits >= LocationRecognizer.MIN_PLAIN_DECIMAL_PLACES)
+					return true;
+			} else
+				_numberState = NUMBER_INTEGER;
+		} else if (c == '.' && _numberState == NUMBER_INTEGER) {
+			_numberState = NUMBER_FRACTION;
+			_fractionDigits = 0;
+		} else
+			_numberState = NUMBER_NONE;
+
+		return false;
+	}
+}
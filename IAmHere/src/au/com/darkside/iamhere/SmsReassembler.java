@@ -0,0 +1,171 @@
+/*
+ * This class joins the parts of concatenated SMS messages back together.
+ *
+ * The parts of one message may arrive in several broadcasts, so they are
+ * held in a small buffer until the message is complete. If a message
+ * hasn't been completed after a couple of minutes, or the buffer is
+ * needed for newer messages, the parts that did arrive are released
+ * together rather than lost.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+public class SmsReassembler {
+	private Pending				_pending[] = new Pending[MAX_PENDING];
+	private int					_count = 0;
+
+	public static final int		MAX_PENDING = 8;
+	public static final long	TIMEOUT = 2 * 60 * 1000;	// Milliseconds.
+
+	/*
+	 * The parts received so far of one concatenated message.
+	 */
+	private static class Pending {
+		public String		address;
+		public int			reference;
+		public String		parts[];
+		public int			received;
+		public long			firstTime;
+	}
+
+	/*
+	 * Add one part of a concatenated message.
+	 * Returns the text of the whole message if this part completes it,
+	 * otherwise null. Call removeExpired first, to make room.
+	 */
+	public String
+	add (
+		String		address,
+		int			reference,
+		int			count,
+		int			number,
+		String		body,
+		long		now
+	) {
+		int			i = indexOf (address, reference, count);
+		Pending		p;
+
+		if (i >= 0)
+			p = _pending[i];
+		else {
+			if (_count == MAX_PENDING)		// Shouldn't happen.
+				return body;
+
+			p = new Pending ();
+			p.address = address;
+			p.reference = reference;
+			p.parts = new String[count];
+			p.received = 0;
+			p.firstTime = now;
+			i = _count;
+			_pending[_count++] = p;
+		}
+
+		if (p.parts[number - 1] == null) {		// Ignore repeats.
+			p.parts[number - 1] = body;
+			p.received++;
+		}
+
+		if (p.received < count)
+			return null;
+
+		remove (i);
+
+		return join (p);
+	}
+
+	/*
+	 * Remove a message that has waited too long, or the oldest message if
+	 * the buffer is full, and return its address and the text of the parts
+	 * that arrived in details[0] and details[1].
+	 * Returns false if nothing needed removing.
+	 */
+	public boolean
+	removeExpired (
+		long		now,
+		String		details[]
+	) {
+		int			oldest = -1;
+		int			i;
+
+		for (i = 0; i < _count; i++)
+			if (oldest < 0 || _pending[i].firstTime < _pending[oldest].firstTime)
+				oldest = i;
+
+		if (oldest < 0 || (_count < MAX_PENDING
+							&& now - _pending[oldest].firstTime < TIMEOUT))
+			return false;
+
+		Pending		p = _pending[oldest];
+
+		remove (oldest);
+		details[0] = p.address;
+		details[1] = join (p);
+
+		return true;
+	}
+
+	/*
+	 * Are any incomplete messages waiting?
+	 */
+	public boolean
+	hasPending () {
+		return (_count > 0);
+	}
+
+	/*
+	 * Return the index of the pending message, or -1 if there isn't one.
+	 */
+	private int
+	indexOf (
+		String		address,
+		int			reference,
+		int			count
+	) {
+		int			i;
+
+		for (i = 0; i < _count; i++) {
+			Pending		p = _pending[i];
+
+			if (p.reference == reference && p.parts.length == count
+												&& p.address.equals (address))
+				return i;
+		}
+
+		return -1;
+	}
+
+	/*
+	 * Remove a pending message from the buffer.
+	 */
+	private void
+	remove (
+		int			i
+	) {
+		_count--;
+		System.arraycopy (_pending, i + 1, _pending, i, _count - i);
+		_pending[_count] = null;
+	}
+
+	/*
+	 * Join the parts that have arrived, in order.
+	 */
+	private static String
+	join (
+		Pending		p
+	) {
+		StringBuilder	sb = new StringBuilder (p.parts.length * 160);
+		int				i;
+
+		for (i = 0; i < p.parts.length; i++)
+			if (p.parts[i] != null)
+				sb.append (p.parts[i]);
+
+		return sb.toString ();
+	}
+}
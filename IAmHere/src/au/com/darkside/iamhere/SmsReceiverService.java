@@ -0,0 +1,423 @@
+/*
+ * This service does the work for SmsReceiver on a background thread,
+ * so that none of it happens in the receiver's time budget.
+ *
+ * Each broadcast is queued, and a single worker thread decodes its
+ * messages, joins the parts of concatenated messages back together,
+ * saves the ones with locations through the DatabaseWriter, and hands them to
+ * the NotificationAggregator. A wake lock is held from the time the broadcast
+ * arrives until the worker has finished with it.
+ *
+ * The service keeps running while parts of a concatenated message are
+ * outstanding, and releases them when they time out.
+ *
+ * Copyright (c) 2010 Matthew Kwan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+package au.com.darkside.iamhere;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.telephony.SmsMessage;
+import android.util.Log;
+
+public class SmsReceiverService extends Service implements Runnable {
+	private BlockingQueue<Broadcast>	_queue;
+	private Thread						_worker;
+	private volatile boolean			_destroyed = false;
+	private volatile int				_lastStartId = 0;
+	private LocationRecognizer			_recognizer = new LocationRecognizer ();
+	private SmsPdu						_pdu = new SmsPdu ();
+	private SmsPrefilter				_prefilter = new SmsPrefilter ();
+	private NotificationAggregator		_notifications;
+	private AdmissionControl			_admission;
+	private boolean						_holdingWakeLock = false;
+	private SmsReassembler				_reassembler = new SmsReassembler ();
+
+	private static PowerManager.WakeLock	_wakeLock = null;
+
+	private static final String	TAG = "IAmHere";
+	private static final String	EXTRA_PDUS = "pdus";
+
+	private static final long	POLL_TIMEOUT = 1000;		// Milliseconds.
+
+	/*
+	 * The PDUs of one broadcast, and the start request that delivered them.
+	 */
+	private static class Broadcast {
+		public final Object		pdus[];
+		public final int		startId;
+
+		public Broadcast (
+			Object		p[],
+			int			id
+		) {
+			pdus = p;
+			startId = id;
+		}
+	}
+
+	/*
+	 * Hand the PDUs of an SMS broadcast over to the service.
+	 * Called by the receiver on the main thread.
+	 */
+	public static void
+	enqueue (
+		Context		context,
+		Object		pdus[]
+	) {
+		Intent		intent = new Intent (context, SmsReceiverService.class);
+
+		intent.putExtra (EXTRA_PDUS, pdus);
+
+		acquireWakeLock (context);
+		if (context.startService (intent) == null)
+			releaseWakeLock ();
+	}
+
+	/*
+	 * Called when the service is created.
+	 */
+	@Override
+	public void
+	onCreate () {
+		super.onCreate ();
+
+		_notifications = NotificationAggregator.getInstance (this);
+		_admission = AdmissionControl.getInstance (this);
+			// Broadcasts waiting for the worker. The queue has no limit,
+			// so the main thread never waits and no SMS is dropped. Each
+			// broadcast is only a few PDUs.
+		_queue = new LinkedBlockingQueue<Broadcast> ();
+		_worker = new Thread (this, "SmsReceiverService");
+		_worker.start ();
+
+		RetentionService.schedule (this);
+	}
+
+	/*
+	 * Called with each broadcast handed over by the receiver.
+	 */
+	@Override
+	public void
+	onStart (
+		Intent		intent,
+		int			startId
+	) {
+		Bundle		bundle = (intent == null) ? null : intent.getExtras ();
+		Object		pdus[] = (bundle == null) ? null
+										: (Object[]) bundle.get (EXTRA_PDUS);
+
+		_lastStartId = startId;
+
+		if (pdus == null) {
+			releaseWakeLock ();
+			return;
+		}
+
+		if (!_queue.offer (new Broadcast (pdus, startId))) {
+			Log.w (TAG, "SMS queue full, dropping " + pdus.length + " PDUs");
+			releaseWakeLock ();
+		}
+	}
+
+	/*
+	 * Called when the service is destroyed. The worker drains any
+	 * remaining broadcasts, then exits.
+	 */
+	@Override
+	public void
+	onDestroy () {
+		_destroyed = true;
+		super.onDestroy ();
+	}
+
+	/*
+	 * The service can't be bound to.
+	 */
+	@Override
+	public IBinder
+	onBind (
+		Intent		intent
+	) {
+		return null;
+	}
+
+	/*
+	 * The worker thread's main loop.
+	 */
+	public void
+	run () {
+		for (;;) {
+			long		timeout = _notifications.timeUntilDue (
+												System.currentTimeMillis ());
+			Broadcast	b;
+
+			if (timeout < 0 || timeout > POLL_TIMEOUT)
+				timeout = POLL_TIMEOUT;
+
+			try {
+				b = _queue.poll (timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				b = null;
+			}
+
+			if (b != null) {
+				try {
+					processBroadcast (b.pdus);
+				} catch (RuntimeException e) {
+					Log.e (TAG, "Failed to process SMS", e);
+				} finally {
+					releaseWakeLock ();
+				}
+			} else if (_destroyed) {
+				releaseExpired (Long.MAX_VALUE);
+				_notifications.flush ();
+				holdWakeLock (false);
+				break;
+			} else if (_reassembler.hasPending ())
+				releaseExpired (System.currentTimeMillis ());
+
+			_notifications.postIfDue (System.currentTimeMillis ());
+
+				// Stay awake until the batched notification is posted.
+			holdWakeLock (_notifications.hasPending ());
+
+				// Only stops if no newer request has arrived.
+			if (_queue.isEmpty () && !_reassembler.hasPending ()
+											&& !_notifications.hasPending ())
+				stopSelf (_lastStartId);
+		}
+	}
+
+	/*
+	 * Take or give up the worker's own count of the wake lock.
+	 */
+	private void
+	holdWakeLock (
+		boolean		hold
+	) {
+		if (hold == _holdingWakeLock)
+			return;
+
+		if (hold)
+			acquireWakeLock (this);
+		else
+			releaseWakeLock ();
+
+		_holdingWakeLock = hold;
+	}
+
+	/*
+	 * Decode the messages in a broadcast, joining the parts of any
+	 * concatenated messages, then save the complete ones.
+	 */
+	private void
+	processBroadcast (
+		Object		pdus[]
+	) {
+		int			max = pdus.length + SmsReassembler.MAX_PENDING;
+		String		phones[] = new String[max];
+		String		bodies[] = new String[max];
+		String		details[] = new String[2];
+		long		now = System.currentTimeMillis ();
+		int			n = 0;
+		int			i;
+
+		for (i = 0; i < pdus.length; i++) {
+			byte		pdu[] = (byte[]) pdus[i];
+			boolean		parsed = _pdu.parse (pdu);
+
+				// Most messages can be rejected without decoding them.
+				// The parts of a concatenated message all have to be
+				// kept, since a location may straddle two of them.
+			if (parsed && !_pdu.isConcatenated ()
+								&& !_prefilter.mayContainLocation (_pdu))
+				continue;
+
+			SmsMessage	msg = SmsMessage.createFromPdu (pdu);
+			String		phone = msg.getOriginatingAddress ();
+			String		body = msg.getMessageBody ();
+
+			if (phone == null)
+				phone = "";
+			if (body == null)
+				continue;
+
+			if (parsed && _pdu.isConcatenated ()) {
+				while (_reassembler.removeExpired (now, details)) {
+					phones[n] = details[0];
+					bodies[n++] = details[1];
+				}
+
+				body = _reassembler.add (phone, _pdu.getReference (),
+										_pdu.getPartCount (),
+										_pdu.getPartNumber (), body, now);
+				if (body == null)
+					continue;
+			}
+
+			phones[n] = phone;
+			bodies[n++] = body;
+		}
+
+		saveMessages (phones, bodies, n);
+	}
+
+	/*
+	 * Save any concatenated messages that have waited too long.
+	 */
+	private void
+	releaseExpired (
+		long		now
+	) {
+		String		phones[] = new String[SmsReassembler.MAX_PENDING];
+		String		bodies[] = new String[SmsReassembler.MAX_PENDING];
+		String		details[] = new String[2];
+		int			n = 0;
+
+		while (n < phones.length && _reassembler.removeExpired (now, details)) {
+			phones[n] = details[0];
+			bodies[n++] = details[1];
+		}
+
+		if (n == 0)
+			return;
+
+		try {
+			saveMessages (phones, bodies, n);
+		} catch (RuntimeException e) {
+			Log.e (TAG, "Failed to save SMS", e);
+		}
+	}
+
+	/*
+	 * Save the messages containing locations in a single write, subject
+	 * to admission control, and notify the user.
+	 */
+	private void
+	saveMessages (
+		String		phones[],
+		String		bodies[],
+		int			count
+	) {
+		int			keep[] = new int[count];
+		int			n = 0;
+		int			i;
+
+		for (i = 0; i < count; i++)
+			if (_recognizer.contains (bodies[i]))
+				keep[n++] = i;
+
+		if (n == 0)
+			return;
+
+		final String	savedPhones[] = new String[n];
+		final String	savedBodies[] = new String[n];
+		final long		now = System.currentTimeMillis ();
+
+		for (i = 0; i < n; i++) {
+			savedPhones[i] = phones[keep[i]];
+			savedBodies[i] = bodies[keep[i]];
+		}
+
+			// Saved on the writer thread, in one transaction with any
+			// other waiting writes. This thread waits for the ids.
+		long		ids[] = DatabaseWriter.getInstance (this).execute (
+										new DatabaseWriter.Write<long[]> () {
+			public long[] run (Database db) {
+				DuplicateFilter	filter = DuplicateFilter.getInstance ();
+				long			a[] = new long[savedPhones.length];
+				int				j;
+
+				for (j = 0; j < a.length; j++) {
+					String		phone = savedPhones[j];
+					String		body = savedBodies[j];
+					String		senderKey = PhoneNumbers.senderKey (
+											SmsReceiverService.this, phone);
+					int			admission;
+
+						// Duplicates are dropped before they can use up
+						// the sender's allowance.
+					if (filter.isDuplicate (senderKey,
+								DuplicateFilter.bodyHash (body), now)) {
+						a[j] = -1;
+						continue;
+					}
+
+					admission = _admission.admit (senderKey, now);
+
+					if (admission == AdmissionControl.ADMIT)
+						a[j] = db.addRecord (phone, body);
+					else if (db.updateCoalescedRecord (phone, body) >= 0) {
+							// Over the limit, so the sender's coalesced
+							// record is updated, without a notification.
+						a[j] = -1;
+						continue;
+					} else if (_admission.admitCoalesced (now))
+						a[j] = db.addCoalescedRecord (phone, body);
+					else {
+							// Over every limit. The message is still in
+							// the regular inbox.
+						Log.w (TAG, "SMS rate limit reached, not saving");
+						a[j] = -1;
+						continue;
+					}
+
+					if (a[j] < 0)
+						_admission.refund (senderKey, admission);
+				}
+
+				return a;
+			}
+		});
+
+		if (ids == null)
+			return;
+
+		for (i = 0; i < n; i++)
+			if (ids[i] >= 0)
+				_notifications.add (phones[keep[i]], bodies[keep[i]], ids[i],
+																		now);
+	}
+
+	/*
+	 * Acquire the wake lock, creating it if necessary.
+	 * It is reference counted, one count per queued broadcast.
+	 */
+	private static synchronized void
+	acquireWakeLock (
+		Context		context
+	) {
+		if (_wakeLock == null) {
+			PowerManager	pm = (PowerManager) context.getSystemService (
+													Context.POWER_SERVICE);
+
+			_wakeLock = pm.newWakeLock (PowerManager.PARTIAL_WAKE_LOCK,
+														"SmsReceiverService");
+			_wakeLock.setReferenceCounted (true);
+		}
+
+		_wakeLock.acquire ();
+	}
+
+	/*
+	 * Release one count of the wake lock.
+	 */
+	private static synchronized void
+	releaseWakeLock () {
+		if (_wakeLock != null && _wakeLock.isHeld ())
+			_wakeLock.release ();
+	}
+}
@@ -12,12 +12,9 @@
 package au.com.darkside.iamhere;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.location.Location;
 import android.location.LocationManager;
 import android.net.ConnectivityManager;
-import android.net.Uri;
-import android.provider.Contacts;
 
 public class Utility {
 	public static final String		MAPS_API_KEY =
@@ -25,29 +22,14 @@ public class Utility {
 
 	/*
 	 * Convert a phone number into a name from the contact database,
-	 * if it exists.
+	 * if it exists. Lookups are cached.
 	 */
 	public static String
 	getContactNameFromNumber (
 		Context		context,
 		String		number
 	) {
-		String		projection[] = new String[] {
-			Contacts.Phones.DISPLAY_NAME, Contacts.Phones.NUMBER
-		};
-		Uri			uri = Uri.withAppendedPath (
-										Contacts.Phones.CONTENT_FILTER_URL,
-														Uri.encode (number));
-		Cursor		c = context.getContentResolver ().query (uri, projection,
-														null, null, null);
- 
-		if (c.moveToFirst ()) {
-			String name = c.getString (c.getColumnIndex (
-											Contacts.Phones.DISPLAY_NAME));
-			return name;
-		}
-
-		return number;		// Return the original number if no match.
+		return ContactNameCache.getInstance (context).getName (number);
 	}
 
 	/*